@@ -20,6 +20,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
@@ -30,6 +31,7 @@ import java.util.Optional;
  * This is the primary configuration file for the example server
  */
 @Configuration
+@Profile("!" + TransformOnlyConfig.PROFILE)
 @EnableTransactionManagement
 public class FhirServerConfigCommon {
 
@@ -6,11 +6,17 @@ import ca.uhn.fhir.jpa.batch2.JpaBatch2Config;
 import ca.uhn.fhir.jpa.config.JpaConfig;
 import ca.uhn.fhir.jpa.config.r4.JpaR4Config;
 import ca.uhn.fhir.jpa.dao.JpaResourceDao;
+import ca.uhn.fhir.jpa.subscription.channel.config.SubscriptionChannelConfig;
+import ca.uhn.fhir.jpa.subscription.match.config.SubscriptionProcessorConfig;
+import ca.uhn.fhir.jpa.subscription.submit.config.SubscriptionSubmitterConfig;
 import ca.uhn.fhir.validation.IInstanceValidatorModule;
 import ch.ahdis.fhir.hapi.jpa.validation.ImplementationGuideProvider;
 import ch.ahdis.fhir.hapi.jpa.validation.JpaExtendedValidationSupportChain;
+import ch.ahdis.matchbox.conformance.JpaConformanceResourceProvider;
+import ch.ahdis.matchbox.conformance.ResourceManifest;
 import ch.ahdis.matchbox.mappinglanguage.ConvertingWorkerContext;
 import ch.ahdis.matchbox.util.MatchboxPackageInstallerImpl;
+import ch.ahdis.matchbox.util.SharedFhirContextReport;
 import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
 import org.hl7.fhir.r4.model.ImplementationGuide;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,11 +24,21 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
 
 import java.io.IOException;
 
 @Configuration
-@Import({StarterJpaConfig.class, JpaR4Config.class, ReindexAppCtx.class, JpaBatch2Config.class})
+@Profile("!" + TransformOnlyConfig.PROFILE)
+@Import({
+	StarterJpaConfig.class,
+	JpaR4Config.class,
+	ReindexAppCtx.class,
+	JpaBatch2Config.class,
+	SubscriptionSubmitterConfig.class,
+	SubscriptionProcessorConfig.class,
+	SubscriptionChannelConfig.class
+})
 public class FhirServerConfigR4 {
 
 	/**
@@ -52,16 +68,21 @@ public class FhirServerConfigR4 {
 	@Bean
 	public ConvertingWorkerContext simpleWorkerContext() {
 		try {
-			return new ConvertingWorkerContext(this.jpaValidationSupportChain());
+			return new ConvertingWorkerContext(fhirContext, this.jpaValidationSupportChain(), this.conformanceResourceProvider(), this.resourceManifest().getOidUriIndex());
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	@Bean
+	public JpaConformanceResourceProvider conformanceResourceProvider() {
+		return new JpaConformanceResourceProvider();
+	}
+
 	@Bean(name = JpaConfig.JPA_VALIDATION_SUPPORT_CHAIN)
 	@Primary
 	public JpaExtendedValidationSupportChain jpaValidationSupportChain() {
-		return new JpaExtendedValidationSupportChain();
+		return new JpaExtendedValidationSupportChain(fhirContext);
 	}
 
 	@Bean(name = "myInstanceValidator")
@@ -69,6 +90,20 @@ public class FhirServerConfigR4 {
 		return new FhirInstanceValidator();
 	}
 
+	/**
+	 * The components use the FhirContext and DaoRegistry of the JPA server instead of creating their own (four
+	 * contexts, two registries, plus the static cached context).
+	 */
+	@Bean
+	public SharedFhirContextReport sharedFhirContextReport() {
+		return new SharedFhirContextReport(fhirContext);
+	}
+
+	@Bean
+	public ResourceManifest resourceManifest() {
+		return new ResourceManifest();
+	}
+
 	@Bean
 	public MatchboxPackageInstallerImpl packageInstaller() {
 		return new MatchboxPackageInstallerImpl();
@@ -0,0 +1,83 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ch.ahdis.fhir.hapi.jpa.validation.ImplementationGuideProvider;
+import ch.ahdis.matchbox.conformance.InMemoryConformanceStore;
+import ch.ahdis.matchbox.conformance.ResourceManifest;
+import ch.ahdis.matchbox.mappinglanguage.ConvertingWorkerContext;
+import ch.ahdis.matchbox.util.SharedFhirContextReport;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.io.IOException;
+
+/**
+ * Configuration of the "transform-only" profile: the implementation guides are loaded into an
+ * {@link InMemoryConformanceStore} and the JPA server (database, Hibernate, search indexing, subscriptions) is not
+ * started. Use it for deployments that only run StructureMap transformations, see application-transform-only.yaml.
+ */
+@Configuration
+@Profile(TransformOnlyConfig.PROFILE)
+public class TransformOnlyConfig {
+
+	public static final String PROFILE = "transform-only";
+
+	@Value("${matchbox.igs.lazy:false}")
+	private boolean lazyIgs;
+
+	@Bean
+	public FhirContext fhirContext() {
+		return FhirContext.forR4();
+	}
+
+	/**
+	 * The worker context and the structure conversion use this context instead of creating their own (plus the static
+	 * cached context).
+	 */
+	@Bean
+	public SharedFhirContextReport sharedFhirContextReport() {
+		return new SharedFhirContextReport(fhirContext());
+	}
+
+	@Bean
+	public ResourceManifest resourceManifest() {
+		return new ResourceManifest();
+	}
+
+	@Bean
+	public InMemoryConformanceStore conformanceStore() {
+		InMemoryConformanceStore retVal = new InMemoryConformanceStore(fhirContext(), resourceManifest());
+		retVal.setLazy(lazyIgs);
+		return retVal;
+	}
+
+	@Bean
+	public ValidationSupportChain validationSupportChain() {
+		return new ValidationSupportChain(
+			conformanceStore(),
+			new DefaultProfileValidationSupport(fhirContext()),
+			new InMemoryTerminologyServerValidationSupport(fhirContext()),
+			new CommonCodeSystemsTerminologyService(fhirContext()));
+	}
+
+	@Bean
+	public ConvertingWorkerContext simpleWorkerContext() {
+		try {
+			return new ConvertingWorkerContext(fhirContext(), validationSupportChain(), conformanceStore(), resourceManifest().getOidUriIndex());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Bean
+	public ImplementationGuideProvider implementationGuideProvider() {
+		return new ImplementationGuideProvider();
+	}
+
+}
@@ -11,6 +11,7 @@ import org.apache.commons.lang3.Validate;
 import org.hl7.fhir.instance.model.api.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.substring;
@@ -38,22 +39,15 @@ import static org.apache.commons.lang3.StringUtils.substring;
 public class FhirTerser {
 
 	private final FhirContext myContext;
+	// target class -> path -> compiled path; per instance, since the child definitions of the compiled paths reference
+	// the context (a static cache keyed weakly by context would never release it)
+	private final Map<Class<?>, Map<String, CompiledPath>> myCompiledPaths = new ConcurrentHashMap<>();
 
 	public FhirTerser(FhirContext theContext) {
 		super();
 		myContext = theContext;
 	}
 
-	private List<String> addNameToList(List<String> theCurrentList, BaseRuntimeChildDefinition theChildDefinition) {
-		if (theChildDefinition == null)
-			return null;
-		if (theCurrentList == null || theCurrentList.isEmpty())
-			return new ArrayList<>(Collections.singletonList(theChildDefinition.getElementName()));
-		List<String> newList = new ArrayList<>(theCurrentList);
-		newList.add(theChildDefinition.getElementName());
-		return newList;
-	}
-
 	/**
 	 * Returns a list containing all child elements (including the resource itself) which are <b>non-empty</b> and are either of the exact type specified, or are a subclass of that type.
 	 * <p>
@@ -70,9 +64,16 @@ public class FhirTerser {
 	 * @return Returns a list of all matching elements
 	 */
 	public <T extends IBase> List<T> getAllPopulatedChildElementsOfType(IBaseResource theResource, final Class<T> theType) {
+		return getAllPopulatedChildElementsOfType(theResource, theType, Collections.emptySet());
+	}
+
+	/**
+	 * Same as {@link #getAllPopulatedChildElementsOfType(IBaseResource, Class)}, but does not descend into elements
+	 * of the pruned types (e.g. Narrative), which are still returned if they match <code>theType</code>.
+	 */
+	public <T extends IBase> List<T> getAllPopulatedChildElementsOfType(IBaseResource theResource, final Class<T> theType, Set<Class<? extends IBase>> thePrunedTypes) {
 		final ArrayList<T> retVal = new ArrayList<>();
-		BaseRuntimeElementCompositeDefinition<?> def = myContext.getResourceDefinition(theResource);
-		visit(newMap(), theResource, theResource, null, null, def, new IModelVisitor() {
+		visit(theResource, new IModelVisitor() {
 			@SuppressWarnings("unchecked")
 			@Override
 			public void acceptElement(IBaseResource theOuterResource, IBase theElement, List<String> thePathToElement, BaseRuntimeChildDefinition theChildDefinition, BaseRuntimeElementDefinition<?> theDefinition) {
@@ -84,7 +85,7 @@ public class FhirTerser {
 					retVal.add((T) theElement);
 				}
 			}
-		});
+		}, thePrunedTypes);
 		return retVal;
 	}
 
@@ -97,20 +98,30 @@ public class FhirTerser {
 		Validate.notNull(theTarget, "theTarget must not be null");
 		Validate.notBlank(thePath, "thePath must not be empty");
 
-		BaseRuntimeElementDefinition<?> def = myContext.getElementDefinition(theTarget.getClass());
-		if (!(def instanceof BaseRuntimeElementCompositeDefinition)) {
-			throw new IllegalArgumentException("Target is not a composite type: " + theTarget.getClass().getName());
-		}
-
-		BaseRuntimeElementCompositeDefinition<?> currentDef = (BaseRuntimeElementCompositeDefinition<?>) def;
-
-		List<String> parts = parsePath(currentDef, thePath);
+		return compilePath(theTarget.getClass(), thePath).getSingleValueOrNull(theTarget, theWantedType);
+	}
 
-		List<T> retVal = getValues(currentDef, theTarget, parts, theWantedType);
-		if (retVal.isEmpty()) {
-			return null;
+	/**
+	 * Compiles a dotted path (e.g. <code>url</code> or <code>uniqueId.value</code>) into the chain of child
+	 * definitions it navigates, so that it can be evaluated many times without parsing and resolving it again.
+	 * Compiled paths are cached per terser instance, target class and path: callers evaluating paths repeatedly keep
+	 * their terser instead of calling {@link FhirContext#newTerser()} again.
+	 *
+	 * @param theTargetType The class of the elements the path will be evaluated on, must be a composite type
+	 * @param thePath       The path, optionally starting with the name of the target type
+	 */
+	public CompiledPath compilePath(Class<? extends IBase> theTargetType, String thePath) {
+		Map<String, CompiledPath> paths = myCompiledPaths.computeIfAbsent(theTargetType, t -> new ConcurrentHashMap<>());
+		CompiledPath retVal = paths.get(thePath);
+		if (retVal == null) {
+			BaseRuntimeElementDefinition<?> def = myContext.getElementDefinition(theTargetType);
+			if (!(def instanceof BaseRuntimeElementCompositeDefinition)) {
+				throw new IllegalArgumentException("Target is not a composite type: " + theTargetType.getName());
+			}
+			retVal = new CompiledPath((BaseRuntimeElementCompositeDefinition<?>) def, thePath, parsePath((BaseRuntimeElementCompositeDefinition<?>) def, thePath));
+			paths.putIfAbsent(thePath, retVal);
 		}
-		return retVal.get(0);
+		return retVal;
 	}
 
 	public Optional<String> getSinglePrimitiveValue(IBase theTarget, String thePath) {
@@ -125,30 +136,6 @@ public class FhirTerser {
 		return Optional.ofNullable(getSingleValueOrNull(theTarget, thePath, theWantedType));
 	}
 
-	private <T extends IBase> List<T> getValues(BaseRuntimeElementCompositeDefinition<?> theCurrentDef, IBase theCurrentObj, List<String> theSubList, Class<T> theWantedClass) {
-		return getValues(theCurrentDef, theCurrentObj, theSubList, theWantedClass, false, false);
-	}
-
-	@SuppressWarnings("unchecked")
-	private <T extends IBase> List<T> getValues(BaseRuntimeElementCompositeDefinition<?> theCurrentDef, IBase theCurrentObj, List<String> theSubList, Class<T> theWantedClass, boolean theCreate, boolean theAddExtension) {
-		String name = theSubList.get(0);
-		List<T> retVal = new ArrayList<>();
-
-		BaseRuntimeChildDefinition nextDef = theCurrentDef.getChildByNameOrThrowDataFormatException(name);
-		List<? extends IBase> values = nextDef.getAccessor().getValues(theCurrentObj);
-
-		if (theSubList.size() == 1) {
-			for (IBase next : values) {
-				if (next != null) {
-					if (theWantedClass == null || theWantedClass.isAssignableFrom(next.getClass())) {
-						retVal.add((T) next);
-					}
-				}
-			}
-		}
-		return retVal;
-	}
-
 	/**
 	 * Returns values stored in an element identified by its path. The list of values is of
 	 * type {@link Object}.
@@ -173,9 +160,7 @@ public class FhirTerser {
 	 * @return A list of values of type <code>theWantedClass</code>.
 	 */
 	public <T extends IBase> List<T> getValues(IBase theElement, String thePath, Class<T> theWantedClass) {
-		BaseRuntimeElementCompositeDefinition<?> def = (BaseRuntimeElementCompositeDefinition<?>) myContext.getElementDefinition(theElement.getClass());
-		List<String> parts = parsePath(def, thePath);
-		return getValues(def, theElement, parts, theWantedClass);
+		return compilePath(theElement.getClass(), thePath).getValues(theElement, theWantedClass);
 	}
 
 	private List<String> parsePath(BaseRuntimeElementCompositeDefinition<?> theElementDef, String thePath) {
@@ -213,29 +198,65 @@ public class FhirTerser {
 		return new IdentityHashMap<>();
 	}
 
-	private void visit(Map<Object, Object> theStack, IBaseResource theResource, IBase theElement, List<String> thePathToElement, BaseRuntimeChildDefinition theChildDefinition,
-							 BaseRuntimeElementDefinition<?> theDefinition, IModelVisitor theCallback) {
-		List<String> pathToElement = addNameToList(thePathToElement, theChildDefinition);
+	public void visit(IBaseResource theResource, IModelVisitor theVisitor) {
+		visit(theResource, theVisitor, Collections.emptySet());
+	}
+
+	/**
+	 * Visits all elements of the resource depth first, in the order of the element definitions, including resources
+	 * referenced by local references and contained resources. Embedded resources (e.g. Bundle.entry.resource) are
+	 * passed to the visitor but not descended into.
+	 * <p>
+	 * The traversal uses an explicit stack instead of recursion, and the path passed to the visitor is only built if
+	 * the visitor reads it.
+	 *
+	 * @param thePrunedTypes elements of these types are passed to the visitor, but their children are not visited
+	 */
+	public void visit(IBaseResource theResource, IModelVisitor theVisitor, Set<Class<? extends IBase>> thePrunedTypes) {
+		Deque<VisitFrame> stack = new ArrayDeque<>();
+		List<VisitFrame> children = new ArrayList<>();
+		stack.push(new VisitFrame(null, theResource, theResource, null, myContext.getResourceDefinition(theResource), false));
+
+		while (!stack.isEmpty()) {
+			VisitFrame frame = stack.pop();
+			List<String> pathToElement = frame.myChildDefinition == null || frame.myEmbedded ? null : frame;
+			theVisitor.acceptElement(frame.myResource, frame.myElement, pathToElement, frame.myChildDefinition, frame.myDefinition);
+			if (frame.myEmbedded || isPruned(frame.myElement, thePrunedTypes)) {
+				continue;
+			}
 
-		if (theStack.put(theElement, theElement) != null) {
-			return;
+			children.clear();
+			addChildren(frame, children);
+			for (int i = children.size() - 1; i >= 0; i--) {
+				stack.push(children.get(i));
+			}
 		}
+	}
 
-		theCallback.acceptElement(theResource, theElement, pathToElement, theChildDefinition, theDefinition);
+	private static boolean isPruned(IBase theElement, Set<Class<? extends IBase>> thePrunedTypes) {
+		for (Class<? extends IBase> next : thePrunedTypes) {
+			if (next.isInstance(theElement)) {
+				return true;
+			}
+		}
+		return false;
+	}
 
-		BaseRuntimeElementDefinition<?> def = theDefinition;
+	private void addChildren(VisitFrame theFrame, List<VisitFrame> theChildren) {
+		IBase element = theFrame.myElement;
+		BaseRuntimeElementDefinition<?> def = theFrame.myDefinition;
 		if (def.getChildType() == ChildTypeEnum.CONTAINED_RESOURCE_LIST) {
-			Class<? extends IBase> clazz = theElement.getClass();
+			Class<? extends IBase> clazz = element.getClass();
 			def = myContext.getElementDefinition(clazz);
 			Validate.notNull(def, "Unable to find element definition for class: %s", clazz);
 		}
 
-		if (theElement instanceof IBaseReference) {
-			IBaseResource target = ((IBaseReference) theElement).getResource();
-			if (target != null) {
+		if (element instanceof IBaseReference) {
+			IBaseResource target = ((IBaseReference) element).getResource();
+			if (target != null && !theFrame.hasAncestorOrSelf(target)) {
 				if (target.getIdElement().hasIdPart() == false || target.getIdElement().isLocal()) {
 					RuntimeResourceDefinition targetDef = myContext.getResourceDefinition(target);
-					visit(theStack, target, target, pathToElement, null, targetDef, theCallback);
+					theChildren.add(new VisitFrame(theFrame, target, target, null, targetDef, false));
 				}
 			}
 		}
@@ -254,7 +275,7 @@ public class FhirTerser {
 				List<BaseRuntimeChildDefinition> childrenAndExtensionDefs = childDef.getChildrenAndExtension();
 				for (BaseRuntimeChildDefinition nextChild : childrenAndExtensionDefs) {
 
-					List<?> values = nextChild.getAccessor().getValues(theElement);
+					List<?> values = nextChild.getAccessor().getValues(element);
 
 					if (values != null) {
 						for (Object nextValueObject : values) {
@@ -280,22 +301,20 @@ public class FhirTerser {
 								Validate.notNull(childElementDef, "Unable to find element definition for class: %s", clazz);
 							}
 
-							if (nextChild instanceof RuntimeChildDirectResource) {
-								// Don't descend into embedded resources
-								theCallback.acceptElement(theResource, nextValue, null, nextChild, childElementDef);
-							} else {
-								visit(theStack, theResource, nextValue, pathToElement, nextChild, childElementDef, theCallback);
-							}
+							// Don't descend into embedded resources
+							boolean embedded = nextChild instanceof RuntimeChildDirectResource;
+							theChildren.add(new VisitFrame(theFrame, theFrame.myResource, nextValue, nextChild, childElementDef, embedded));
 						}
 					}
 				}
 				break;
 			}
 			case CONTAINED_RESOURCES: {
-				BaseContainedDt value = (BaseContainedDt) theElement;
+				BaseContainedDt value = (BaseContainedDt) element;
 				for (IResource next : value.getContainedResources()) {
-					def = myContext.getResourceDefinition(next);
-					visit(theStack, next, next, pathToElement, null, def, theCallback);
+					if (!theFrame.hasAncestorOrSelf(next)) {
+						theChildren.add(new VisitFrame(theFrame, next, next, null, myContext.getResourceDefinition(next), false));
+					}
 				}
 				break;
 			}
@@ -305,11 +324,67 @@ public class FhirTerser {
 				throw new IllegalStateException("state should not happen: " + def.getChildType());
 			}
 		}
+	}
 
-		theStack.remove(theElement);
+	/**
+	 * An element on the stack of {@link #visit(IBaseResource, IModelVisitor, Set)}. It doubles as the path to the
+	 * element (the element names from the enclosing resource down to it), which is only materialized when read.
+	 */
+	private static class VisitFrame extends AbstractList<String> {
+		private final VisitFrame myParent;
+		private final IBaseResource myResource;
+		private final IBase myElement;
+		private final BaseRuntimeChildDefinition myChildDefinition;
+		private final BaseRuntimeElementDefinition<?> myDefinition;
+		private final boolean myEmbedded;
+		private String[] myPath;
+
+		private VisitFrame(VisitFrame theParent, IBaseResource theResource, IBase theElement, BaseRuntimeChildDefinition theChildDefinition, BaseRuntimeElementDefinition<?> theDefinition, boolean theEmbedded) {
+			myParent = theParent;
+			myResource = theResource;
+			myElement = theElement;
+			myChildDefinition = theChildDefinition;
+			myDefinition = theDefinition;
+			myEmbedded = theEmbedded;
+		}
 
-	}
+		// cycles are only possible through referenced and contained resources
+		private boolean hasAncestorOrSelf(IBase theElement) {
+			for (VisitFrame next = this; next != null; next = next.myParent) {
+				if (next.myElement == theElement) {
+					return true;
+				}
+			}
+			return false;
+		}
 
+		private String[] getPath() {
+			if (myPath == null) {
+				int depth = 0;
+				for (VisitFrame next = this; next != null && next.myChildDefinition != null; next = next.myParent) {
+					depth++;
+				}
+				String[] path = new String[depth];
+				VisitFrame next = this;
+				for (int i = depth - 1; i >= 0; i--) {
+					path[i] = next.myChildDefinition.getElementName();
+					next = next.myParent;
+				}
+				myPath = path;
+			}
+			return myPath;
+		}
+
+		@Override
+		public String get(int theIndex) {
+			return getPath()[theIndex];
+		}
+
+		@Override
+		public int size() {
+			return getPath().length;
+		}
+	}
 
 	/**
 	 * Iterate through the whole resource and identify any contained resources. Optionally this method
@@ -347,6 +422,68 @@ public class FhirTerser {
 		return containedResources;
 	}
 
+	/**
+	 * A path resolved to the child definitions it navigates, see {@link #compilePath(Class, String)}. Immutable and
+	 * thread safe.
+	 */
+	public static class CompiledPath {
+		private final String myPath;
+		private final BaseRuntimeChildDefinition[] myChildren;
+
+		private CompiledPath(BaseRuntimeElementCompositeDefinition<?> theTargetDef, String thePath, List<String> theParts) {
+			myPath = thePath;
+			myChildren = new BaseRuntimeChildDefinition[theParts.size()];
+			BaseRuntimeElementCompositeDefinition<?> currentDef = theTargetDef;
+			for (int i = 0; i < theParts.size(); i++) {
+				if (currentDef == null) {
+					throw new ConfigurationException("Invalid path: " + thePath + ", " + theParts.get(i - 1) + " is not a composite element");
+				}
+				String name = theParts.get(i);
+				myChildren[i] = currentDef.getChildByNameOrThrowDataFormatException(name);
+				BaseRuntimeElementDefinition<?> childDef = myChildren[i].getChildByName(name);
+				currentDef = childDef instanceof BaseRuntimeElementCompositeDefinition ? (BaseRuntimeElementCompositeDefinition<?>) childDef : null;
+			}
+		}
+
+		public String getPath() {
+			return myPath;
+		}
+
+		public <T extends IBase> List<T> getValues(IBase theTarget, Class<T> theWantedClass) {
+			List<T> retVal = new ArrayList<>();
+			collect(theTarget, 0, theWantedClass, retVal, false);
+			return retVal;
+		}
+
+		public <T extends IBase> T getSingleValueOrNull(IBase theTarget, Class<T> theWantedClass) {
+			List<T> retVal = new ArrayList<>(1);
+			collect(theTarget, 0, theWantedClass, retVal, true);
+			return retVal.isEmpty() ? null : retVal.get(0);
+		}
+
+		@SuppressWarnings("unchecked")
+		private <T extends IBase> boolean collect(IBase theCurrent, int theIndex, Class<T> theWantedClass, List<T> theResult, boolean theFirstOnly) {
+			List<? extends IBase> values = myChildren[theIndex].getAccessor().getValues(theCurrent);
+			boolean last = theIndex == myChildren.length - 1;
+			for (IBase next : values) {
+				if (next == null) {
+					continue;
+				}
+				if (last) {
+					if (theWantedClass == null || theWantedClass.isAssignableFrom(next.getClass())) {
+						theResult.add((T) next);
+						if (theFirstOnly) {
+							return true;
+						}
+					}
+				} else if (collect(next, theIndex + 1, theWantedClass, theResult, theFirstOnly)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
 	public enum OptionsEnum {
 
 		/**
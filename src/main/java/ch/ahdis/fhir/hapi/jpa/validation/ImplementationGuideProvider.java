@@ -3,9 +3,14 @@ package ch.ahdis.fhir.hapi.jpa.validation;
 import ca.uhn.fhir.jpa.packages.PackageInstallOutcomeJson;
 import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
 import ca.uhn.fhir.jpa.starter.AppProperties;
-import ch.ahdis.matchbox.util.MatchboxPackageInstallerImpl;
+import ch.ahdis.matchbox.mappinglanguage.ConvertingWorkerContext;
+import ch.ahdis.matchbox.util.MatchboxPackageInstaller;
+import ch.ahdis.matchbox.util.PackageInstallFilter;
 import org.hl7.fhir.r4.model.ImplementationGuide;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
 import org.springframework.core.io.ClassPathResource;
 
 import java.io.IOException;
@@ -14,6 +19,7 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.function.Function;
@@ -21,7 +27,13 @@ import java.util.function.Function;
 public class ImplementationGuideProvider {
 
 	@Autowired
-	MatchboxPackageInstallerImpl packageInstallerSvc;
+	MatchboxPackageInstaller packageInstallerSvc;
+
+	@Autowired
+	Environment environment;
+
+	@Autowired
+	ConvertingWorkerContext convertingWorkerContext;
 
 	// Contains implementation guides to download
 	private Map<String, AppProperties.ImplementationGuide> implementationGuides;
@@ -52,7 +64,18 @@ public class ImplementationGuideProvider {
 
 	}
 
+	// Install filters per implementation guide key, e.g. matchbox.igs.filters.core.resource-types
+	private Map<String, PackageInstallFilter> bindFilters() {
+		return Binder.get(environment)
+			.bind("matchbox.igs.filters", Bindable.mapOf(String.class, PackageInstallFilter.class))
+			.orElse(Collections.emptyMap());
+	}
+
 	public PackageInstallOutcomeJson load(ImplementationGuide theResource, PackageInstallOutcomeJson install) {
+		return load(theResource, new PackageInstallFilter(), install);
+	}
+
+	public PackageInstallOutcomeJson load(ImplementationGuide theResource, PackageInstallFilter theFilter, PackageInstallOutcomeJson install) {
 		PackageInstallOutcomeJson installOutcome = packageInstallerSvc.install(new PackageInstallationSpec()
 			.setPackageUrl(theResource.getUrl())
 			.addInstallResourceTypes(
@@ -65,7 +88,8 @@ public class ImplementationGuideProvider {
 				"ImplementationGuide")
 			.setName(theResource.getName())
 			.setVersion(theResource.getVersion())
-			.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL));
+			.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL), theFilter);
+		convertingWorkerContext.resourcesInstalled();
 
 		if (install != null) {
 			install.getMessage().addAll(installOutcome.getMessage());
@@ -78,13 +102,15 @@ public class ImplementationGuideProvider {
 		PackageInstallOutcomeJson installOutcome = null;
 		fillIGMap();
 		if (this.implementationGuides != null) {
-			for (AppProperties.ImplementationGuide guide : this.implementationGuides.values()) {
+			Map<String, PackageInstallFilter> filters = bindFilters();
+			for (Map.Entry<String, AppProperties.ImplementationGuide> entry : this.implementationGuides.entrySet()) {
+				AppProperties.ImplementationGuide guide = entry.getValue();
 				ImplementationGuide ig = new ImplementationGuide();
 				ig.setName(guide.getName());
 				ig.setPackageId(guide.getName());
 				ig.setUrl(guide.getUrl());
 				ig.setVersion(guide.getVersion());
-				installOutcome = load(ig, installOutcome);
+				installOutcome = load(ig, filters.getOrDefault(entry.getKey(), new PackageInstallFilter()), installOutcome);
 			}
 		}
 		return installOutcome;
@@ -0,0 +1,23 @@
+package ch.ahdis.matchbox.conformance;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+
+/**
+ * Lookups of R4 conformance resources needed by the ConvertingWorkerContext that go beyond what the validation
+ * support chain offers.
+ */
+public interface IConformanceResourceProvider {
+
+	/**
+	 * Returns the most recently installed resource of the given type with the canonical url, or null if there is
+	 * none. The url may be suffixed with <code>|version</code>.
+	 */
+	IBaseResource fetchByUrl(String theResourceType, String theUri);
+
+	/**
+	 * Returns the StructureDefinitions whose <code>type</code> is the given type.
+	 */
+	List<IBaseResource> fetchStructureDefinitionsByType(String theType);
+}
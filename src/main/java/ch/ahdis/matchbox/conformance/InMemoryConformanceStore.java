@@ -0,0 +1,503 @@
+package ch.ahdis.matchbox.conformance;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.jpa.packages.ImplementationGuideInstallationException;
+import ca.uhn.fhir.jpa.packages.PackageInstallOutcomeJson;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ch.ahdis.matchbox.util.MatchboxPackageInstaller;
+import ch.ahdis.matchbox.util.PackageInstallFilter;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.hl7.fhir.utilities.npm.NpmPackage.NpmPackageFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.ResourceLoader;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Read-only conformance backend of the transform-only profile. The resources of the installed NPM packages are kept
+ * in memory, indexed by resource type and canonical url, instead of being persisted through the JPA stack. It serves
+ * both the validation support chain and the ConvertingWorkerContext lookups.
+ * <p>
+ * Installation follows the rules of {@link ch.ahdis.matchbox.util.MatchboxPackageInstallerImpl}: the parts of the
+ * package to load are selected with a {@link PackageInstallFilter} and resources with status "draft" are accepted.
+ * <p>
+ * In lazy mode only the package indexes (.index.json) are read when a package is installed; a resource is parsed
+ * from the package the first time it is fetched and then kept. NamingSystems are still parsed eagerly, since they
+ * are looked up by their unique ids which are not part of the index. Resources are skipped if the index states a
+ * status that is not installable; if it does not, a resource found not to be installable when it is parsed is removed
+ * from the store and the manifest again.
+ */
+public class InMemoryConformanceStore implements IValidationSupport, IConformanceResourceProvider, MatchboxPackageInstaller {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(InMemoryConformanceStore.class);
+
+	private final FhirContext myFhirContext;
+	private final ResourceLoader myResourceLoader = new DefaultResourceLoader();
+
+	// resource type -> canonical url -> installed resources, in installation order
+	private final Map<String, Map<String, List<StoredResource>>> myResourcesByTypeAndUrl = new ConcurrentHashMap<>();
+	// StructureDefinition.type -> installed StructureDefinitions
+	private final Map<String, List<StoredResource>> myStructureDefinitionsByType = new ConcurrentHashMap<>();
+
+	private final ResourceManifest myManifest;
+	private final ResourceManifestExtractor myManifestExtractor;
+
+	private boolean myLazy;
+
+	public InMemoryConformanceStore(FhirContext theFhirContext, ResourceManifest theManifest) {
+		myFhirContext = theFhirContext;
+		myManifest = theManifest;
+		myManifestExtractor = new ResourceManifestExtractor(theFhirContext);
+	}
+
+	public boolean isLazy() {
+		return myLazy;
+	}
+
+	/**
+	 * If set, packages installed afterwards are only indexed and their resources are parsed on first use.
+	 */
+	public void setLazy(boolean theLazy) {
+		myLazy = theLazy;
+	}
+
+	@Override
+	public FhirContext getFhirContext() {
+		return myFhirContext;
+	}
+
+	/**
+	 * Reads the package referenced by {@link PackageInstallationSpec#getPackageUrl()} (any url understood by
+	 * Spring's resource loader, e.g. <code>file:</code> or <code>classpath:</code>) and adds its resources of the
+	 * requested types to the store.
+	 */
+	@Override
+	public PackageInstallOutcomeJson install(PackageInstallationSpec theInstallationSpec, PackageInstallFilter theFilter) throws ImplementationGuideInstallationException {
+		PackageInstallOutcomeJson retVal = new PackageInstallOutcomeJson();
+		NpmPackage npmPackage;
+		try (InputStream stream = myResourceLoader.getResource(theInstallationSpec.getPackageUrl()).getInputStream()) {
+			npmPackage = NpmPackage.fromPackage(stream);
+		} catch (IOException e) {
+			throw new ImplementationGuideInstallationException("Could not load NPM package " + theInstallationSpec.getName() + "#" + theInstallationSpec.getVersion(), e);
+		}
+
+		String name = npmPackage.name();
+		String version = npmPackage.version();
+		ourLog.info("Loading package into the in-memory conformance store: {}#{}", name, version);
+
+		String packageId = name + "#" + version;
+		removePackage(packageId);
+		if (myLazy) {
+			installLazily(npmPackage, packageId, theInstallationSpec.getInstallResourceTypes(), theFilter, retVal);
+		} else {
+			installEagerly(npmPackage, packageId, theInstallationSpec.getInstallResourceTypes(), theFilter, retVal);
+		}
+
+		String log = String.format("Finished loading of package %s#%s", name, version);
+		ourLog.info(log);
+		retVal.getMessage().add(log);
+		return retVal;
+	}
+
+	private void installEagerly(NpmPackage npmPackage, String thePackageId, List<String> theResourceTypes, PackageInstallFilter theFilter, PackageInstallOutcomeJson retVal) {
+		for (String type : theResourceTypes) {
+			if (!theFilter.acceptsResourceType(type)) {
+				continue;
+			}
+			int count = 0;
+			for (IBaseResource next : parseResourcesOfType(type, npmPackage, theFilter)) {
+				ResourceManifestEntry entry = myManifestExtractor.extract(next);
+				if (entry.isInstallable() && acceptsUrl(entry, theFilter)) {
+					entry.setPackageId(thePackageId);
+					add(next, entry);
+					retVal.incrementResourcesInstalled(type);
+					count++;
+				}
+			}
+			String log = String.format("-- Loaded %s resources of type %s", count, type);
+			ourLog.info(log);
+			retVal.getMessage().add(log);
+		}
+	}
+
+	private void installLazily(NpmPackage npmPackage, String thePackageId, List<String> theResourceTypes, PackageInstallFilter theFilter, PackageInstallOutcomeJson retVal) {
+		Map<String, Integer> counts = new LinkedHashMap<>();
+		for (String type : theResourceTypes) {
+			if (theFilter.acceptsResourceType(type)) {
+				counts.put(type, 0);
+			}
+		}
+		for (String folderName : theFilter.getFolders()) {
+			NpmPackageFolder folder = npmPackage.getFolders().get(folderName);
+			if (folder == null) {
+				continue;
+			}
+			for (JsonObject entry : readIndexEntries(folder)) {
+				String type = getString(entry, "resourceType");
+				String file = getString(entry, "filename");
+				if (type == null || file == null || !counts.containsKey(type)) {
+					continue;
+				}
+				if ("NamingSystem".equals(type)) {
+					IBaseResource namingSystem = parse(folder, file);
+					ResourceManifestEntry manifestEntry = myManifestExtractor.extract(namingSystem);
+					if (!manifestEntry.isInstallable()) {
+						continue;
+					}
+					manifestEntry.setPackageId(thePackageId);
+					add(namingSystem, manifestEntry);
+				} else {
+					String url = getString(entry, "url");
+					if (url == null || !theFilter.acceptsUrl(url)) {
+						continue;
+					}
+					// if the index has no status it is only known once the resource is parsed, see StoredResource
+					ResourceManifestEntry manifestEntry = new ResourceManifestEntry(type, getString(entry, "id"));
+					manifestEntry.setStatus(getString(entry, "status"));
+					if (!manifestEntry.isInstallable()) {
+						continue;
+					}
+					manifestEntry.setPackageId(thePackageId);
+					manifestEntry.setUrl(url);
+					manifestEntry.setVersion(getString(entry, "version"));
+					myManifest.add(manifestEntry);
+					StoredResource stored = new StoredResource(manifestEntry, folder, file);
+					index(type, url, stored);
+					String sdType = getString(entry, "type");
+					if ("StructureDefinition".equals(type) && sdType != null) {
+						myStructureDefinitionsByType.computeIfAbsent(sdType, t -> new CopyOnWriteArrayList<>()).add(stored);
+					}
+				}
+				retVal.incrementResourcesInstalled(type);
+				counts.merge(type, 1, Integer::sum);
+			}
+		}
+		for (Map.Entry<String, Integer> next : counts.entrySet()) {
+			String log = String.format("-- Indexed %s resources of type %s for loading on demand", next.getValue(), next.getKey());
+			ourLog.info(log);
+			retVal.getMessage().add(log);
+		}
+	}
+
+	/**
+	 * Returns the entries of the .index.json of the folder. Folders without index (the examples) are scanned with a
+	 * plain JSON parser, which is much cheaper than parsing the resources into the model.
+	 */
+	private List<JsonObject> readIndexEntries(NpmPackageFolder theFolder) {
+		List<JsonObject> retVal = new ArrayList<>();
+		try {
+			byte[] index = theFolder.fetchFile(".index.json");
+			if (index != null) {
+				for (JsonElement next : JsonParser.parseString(new String(index, StandardCharsets.UTF_8)).getAsJsonObject().getAsJsonArray("files")) {
+					retVal.add(next.getAsJsonObject());
+				}
+				return retVal;
+			}
+			for (String file : theFolder.listFiles()) {
+				if (!file.endsWith(".json") || file.startsWith(".") || "package.json".equals(file)) {
+					continue;
+				}
+				JsonObject json;
+				try {
+					json = JsonParser.parseString(new String(theFolder.fetchFile(file), StandardCharsets.UTF_8)).getAsJsonObject();
+				} catch (JsonParseException | IllegalStateException e) {
+					ourLog.debug("Skipping {} in folder {}, it is not a JSON resource", file, theFolder.getName());
+					continue;
+				}
+				JsonObject entry = new JsonObject();
+				entry.addProperty("filename", file);
+				for (String property : Arrays.asList("resourceType", "id", "url", "version", "status", "type")) {
+					String value = getString(json, property);
+					if (value != null) {
+						entry.addProperty(property, value);
+					}
+				}
+				retVal.add(entry);
+			}
+		} catch (IOException e) {
+			throw new InternalErrorException("Could not read the index of folder " + theFolder.getName(), e);
+		}
+		return retVal;
+	}
+
+	private static String getString(JsonObject theObject, String theName) {
+		JsonElement element = theObject.get(theName);
+		return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+	}
+
+	private IBaseResource parse(NpmPackageFolder theFolder, String theFile) {
+		try {
+			return myFhirContext.newJsonParser().parseResource(new String(theFolder.fetchFile(theFile)));
+		} catch (IOException e) {
+			throw new InternalErrorException("Could not fetch file " + theFile + " from folder " + theFolder.getName(), e);
+		}
+	}
+
+	private List<IBaseResource> parseResourcesOfType(String type, NpmPackage pkg, PackageInstallFilter theFilter) {
+		ArrayList<IBaseResource> resources = new ArrayList<>();
+
+		for (String folderName : theFilter.getFolders()) {
+			NpmPackageFolder folder = pkg.getFolders().get(folderName);
+			if (folder == null) {
+				continue;
+			}
+			if (folder.getTypes().isEmpty()) {
+				try {
+					pkg.indexFolder(folderName, folder);
+				} catch (IOException e) {
+					throw new InternalErrorException("Cannot load resource of type " + type + ": Could not read " + folderName + " directory", e);
+				}
+			}
+			addFolder(type, folder, resources);
+		}
+		return resources;
+	}
+
+	private boolean acceptsUrl(ResourceManifestEntry theEntry, PackageInstallFilter theFilter) {
+		if (!theFilter.hasUrlPatterns() || "NamingSystem".equals(theEntry.getResourceType())) {
+			return true;
+		}
+		return theFilter.acceptsUrl(theEntry.getUrl());
+	}
+
+	private void addFolder(String type, NpmPackageFolder folder, List<IBaseResource> resources) {
+		if (folder == null) return;
+		List<String> filesForType = folder.getTypes().get(type);
+		if (filesForType == null) return;
+		for (String file : filesForType) {
+			try {
+				byte[] content = folder.fetchFile(file);
+				resources.add(myFhirContext.newJsonParser().parseResource(new String(content)));
+			} catch (IOException e) {
+				throw new InternalErrorException("Cannot load resource of type " + type + ": Could not fetch file " + file, e);
+			}
+		}
+	}
+
+	private void add(IBaseResource theResource, ResourceManifestEntry theEntry) {
+		String resourceType = theEntry.getResourceType();
+		if ("NamingSystem".equals(resourceType)) {
+			// NamingSystems have no canonical url, they are found by their unique ids
+			StoredResource stored = new StoredResource(theEntry, theResource);
+			for (ResourceManifestEntry.UniqueId uniqueId : theEntry.getUniqueIds()) {
+				index(resourceType, uniqueId.getValue(), stored);
+			}
+			myManifest.add(theEntry);
+		} else if (theEntry.getUrl() != null) {
+			StoredResource stored = new StoredResource(theEntry, theResource);
+			index(resourceType, theEntry.getUrl(), stored);
+			if (theResource instanceof StructureDefinition && ((StructureDefinition) theResource).hasType()) {
+				myStructureDefinitionsByType.computeIfAbsent(((StructureDefinition) theResource).getType(), t -> new CopyOnWriteArrayList<>()).add(stored);
+			}
+			myManifest.add(theEntry);
+		} else {
+			ourLog.debug("Not indexing {} {}, it has no canonical url", resourceType, theEntry.getId());
+		}
+	}
+
+	private void index(String theResourceType, String theUrl, StoredResource theStoredResource) {
+		myResourcesByTypeAndUrl
+			.computeIfAbsent(theResourceType, t -> new ConcurrentHashMap<>())
+			.computeIfAbsent(theUrl, u -> new CopyOnWriteArrayList<>())
+			.add(theStoredResource);
+	}
+
+	/**
+	 * Removes the resources of an earlier installation of the package, so that installing it again replaces them.
+	 */
+	private void removePackage(String thePackageId) {
+		for (Map<String, List<StoredResource>> byUrl : myResourcesByTypeAndUrl.values()) {
+			for (List<StoredResource> next : byUrl.values()) {
+				next.removeIf(stored -> thePackageId.equals(stored.myEntry.getPackageId()));
+			}
+		}
+		for (List<StoredResource> next : myStructureDefinitionsByType.values()) {
+			next.removeIf(stored -> thePackageId.equals(stored.myEntry.getPackageId()));
+		}
+		myManifest.removePackage(thePackageId);
+	}
+
+	/**
+	 * Removes a lazily indexed resource whose status turned out not to allow it to be used.
+	 */
+	private void remove(StoredResource theStoredResource) {
+		Map<String, List<StoredResource>> byUrl = myResourcesByTypeAndUrl.get(theStoredResource.myEntry.getResourceType());
+		if (byUrl != null && theStoredResource.myEntry.getUrl() != null) {
+			List<StoredResource> stored = byUrl.get(theStoredResource.myEntry.getUrl());
+			if (stored != null) {
+				stored.remove(theStoredResource);
+			}
+		}
+		for (List<StoredResource> next : myStructureDefinitionsByType.values()) {
+			next.remove(theStoredResource);
+		}
+		myManifest.remove(theStoredResource.myEntry);
+	}
+
+	@Override
+	public IBaseResource fetchByUrl(String theResourceType, String theUri) {
+		Map<String, List<StoredResource>> byUrl = myResourcesByTypeAndUrl.get(theResourceType);
+		if (byUrl == null || isBlank(theUri)) {
+			return null;
+		}
+		String url = theUri;
+		String version = null;
+		int versionSeparator = theUri.lastIndexOf('|');
+		if (versionSeparator != -1) {
+			url = theUri.substring(0, versionSeparator);
+			version = theUri.substring(versionSeparator + 1);
+		}
+		List<StoredResource> candidates = byUrl.get(url);
+		if (candidates == null) {
+			return null;
+		}
+		// like the JPA lookup, the most recently installed resource wins
+		for (int i = candidates.size() - 1; i >= 0; i--) {
+			StoredResource candidate = candidates.get(i);
+			if (version == null || version.equals(candidate.getVersion())) {
+				IBaseResource resource = candidate.getResource();
+				if (resource != null) {
+					return resource;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public List<IBaseResource> fetchStructureDefinitionsByType(String theType) {
+		List<StoredResource> stored = myStructureDefinitionsByType.get(theType);
+		if (stored == null) {
+			return Collections.emptyList();
+		}
+		List<IBaseResource> retVal = new ArrayList<>(stored.size());
+		for (StoredResource next : stored) {
+			IBaseResource resource = next.getResource();
+			if (resource != null) {
+				retVal.add(resource);
+			}
+		}
+		return retVal;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends IBaseResource> T fetchResource(@Nullable Class<T> theClass, String theUri) {
+		if (theClass == null || theClass.isInterface() || Modifier.isAbstract(theClass.getModifiers())) {
+			for (String resourceType : myResourcesByTypeAndUrl.keySet()) {
+				IBaseResource retVal = fetchByUrl(resourceType, theUri);
+				if (retVal != null && (theClass == null || theClass.isInstance(retVal))) {
+					return (T) retVal;
+				}
+			}
+			return null;
+		}
+		IBaseResource retVal = fetchByUrl(myFhirContext.getResourceType(theClass), theUri);
+		return theClass.isInstance(retVal) ? theClass.cast(retVal) : null;
+	}
+
+	@Override
+	public IBaseResource fetchStructureDefinition(String theUrl) {
+		return fetchByUrl("StructureDefinition", theUrl);
+	}
+
+	@Override
+	public IBaseResource fetchValueSet(String theValueSetUrl) {
+		return fetchByUrl("ValueSet", theValueSetUrl);
+	}
+
+	@Override
+	public IBaseResource fetchCodeSystem(String theSystem) {
+		return fetchByUrl("CodeSystem", theSystem);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends IBaseResource> List<T> fetchAllStructureDefinitions() {
+		List<T> retVal = new ArrayList<>();
+		Map<String, List<StoredResource>> byUrl = myResourcesByTypeAndUrl.get("StructureDefinition");
+		if (byUrl != null) {
+			for (String url : byUrl.keySet()) {
+				IBaseResource resource = fetchByUrl("StructureDefinition", url);
+				if (resource != null) {
+					retVal.add((T) resource);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private class StoredResource {
+		private final ResourceManifestEntry myEntry;
+		private final NpmPackageFolder myFolder;
+		private final String myFileName;
+		private volatile IBaseResource myResource;
+		private volatile boolean myRejected;
+
+		private StoredResource(ResourceManifestEntry theEntry, IBaseResource theResource) {
+			myEntry = theEntry;
+			myResource = theResource;
+			myFolder = null;
+			myFileName = null;
+		}
+
+		private StoredResource(ResourceManifestEntry theEntry, NpmPackageFolder theFolder, String theFileName) {
+			myEntry = theEntry;
+			myFolder = theFolder;
+			myFileName = theFileName;
+		}
+
+		public String getVersion() {
+			return myEntry.getVersion();
+		}
+
+		/**
+		 * @return the resource, parsed on first access if it was indexed lazily, or null if its status does not
+		 * allow it to be used
+		 */
+		public IBaseResource getResource() {
+			IBaseResource retVal = myResource;
+			if (retVal == null && !myRejected) {
+				synchronized (this) {
+					if (myResource == null && !myRejected) {
+						IBaseResource parsed = parse(myFolder, myFileName);
+						myEntry.setStatus(myManifestExtractor.extract(parsed).getStatus());
+						if (myEntry.isInstallable()) {
+							myResource = parsed;
+						} else {
+							ourLog.debug("Ignoring {} from folder {}, its status is neither active nor draft", myFileName, myFolder.getName());
+							myRejected = true;
+							remove(this);
+						}
+					}
+					retVal = myResource;
+				}
+			}
+			return retVal;
+		}
+	}
+}
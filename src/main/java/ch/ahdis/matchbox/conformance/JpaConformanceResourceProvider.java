@@ -0,0 +1,67 @@
+package ch.ahdis.matchbox.conformance;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Looks up conformance resources with searches against the JPA database.
+ */
+public class JpaConformanceResourceProvider implements IConformanceResourceProvider {
+	private static final Logger ourLog = LoggerFactory.getLogger(JpaConformanceResourceProvider.class);
+
+	@Autowired
+	private DaoRegistry myDaoRegistry;
+
+	@Override
+	public IBaseResource fetchByUrl(String theResourceType, String theUri) {
+		int versionSeparator = theUri.lastIndexOf('|');
+		SearchParameterMap params = new SearchParameterMap();
+		params.setLoadSynchronousUpTo(1);
+		if (versionSeparator != -1) {
+			params.add(ValueSet.SP_VERSION, new TokenParam(theUri.substring(versionSeparator + 1)));
+			params.add(ValueSet.SP_URL, new UriParam(theUri.substring(0, versionSeparator)));
+		} else {
+			params.add(ValueSet.SP_URL, new UriParam(theUri));
+		}
+		params.setSort(new SortSpec("_lastUpdated").setOrder(SortOrderEnum.DESC));
+		IBundleProvider search = myDaoRegistry.getResourceDao(theResourceType).search(params);
+
+		Integer size = search.size();
+		if (size == null || size == 0) {
+			return null;
+		}
+
+		if (size > 1) {
+			ourLog.warn("Found multiple {} instances with URL search value of: {}", theResourceType, theUri);
+		}
+
+		return search.getResources(0, 1).get(0);
+	}
+
+	@Override
+	public List<IBaseResource> fetchStructureDefinitionsByType(String theType) {
+		SearchParameterMap params = new SearchParameterMap();
+		params.setLoadSynchronousUpTo(100);
+		params.add(StructureDefinition.SP_TYPE, new UriParam(theType));
+		IBundleProvider search = myDaoRegistry.getResourceDao("StructureDefinition").search(params);
+		Integer size = search.size();
+		if (size == null || size == 0) {
+			return Collections.emptyList();
+		}
+		return search.getAllResources();
+	}
+}
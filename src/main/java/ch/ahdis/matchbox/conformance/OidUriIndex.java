@@ -0,0 +1,93 @@
+package ch.ahdis.matchbox.conformance;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bidirectional index between the oid and the uri unique ids of the installed NamingSystems, maintained by the
+ * {@link ResourceManifest} as NamingSystems are installed. If several NamingSystems declare the same oid or uri, the
+ * most recently installed one wins, as for canonical urls.
+ */
+public class OidUriIndex {
+
+	private static final String OID_PREFIX = "urn:oid:";
+
+	private final Map<String, String> myUriByOid = new ConcurrentHashMap<>();
+	private final Map<String, String> myOidByUri = new ConcurrentHashMap<>();
+
+	/**
+	 * Indexes the first oid and the first uri unique id of a NamingSystem entry, other entries are ignored. A
+	 * NamingSystem installed before with the same oid or the same uri is replaced, its other mapping is removed too.
+	 */
+	public synchronized void add(ResourceManifestEntry theEntry) {
+		String[] oidAndUri = oidAndUri(theEntry);
+		if (oidAndUri != null) {
+			String oid = oidAndUri[0];
+			String uri = oidAndUri[1];
+			String replacedUri = myUriByOid.put(oid, uri);
+			if (replacedUri != null && !replacedUri.equals(uri)) {
+				myOidByUri.remove(replacedUri, oid);
+			}
+			String replacedOid = myOidByUri.put(uri, oid);
+			if (replacedOid != null && !replacedOid.equals(oid)) {
+				myUriByOid.remove(replacedOid, uri);
+			}
+		}
+	}
+
+	/**
+	 * @return the first oid (without prefix) and the first uri of a NamingSystem entry, null if it has not both
+	 */
+	private static String[] oidAndUri(ResourceManifestEntry theEntry) {
+		if (!"NamingSystem".equals(theEntry.getResourceType())) {
+			return null;
+		}
+		String oid = null;
+		String uri = null;
+		for (ResourceManifestEntry.UniqueId next : theEntry.getUniqueIds()) {
+			if (next.getValue() == null) {
+				continue;
+			}
+			if (oid == null && "oid".equals(next.getType())) {
+				oid = stripOidPrefix(next.getValue());
+			} else if (uri == null && "uri".equals(next.getType()) && !next.getValue().startsWith(OID_PREFIX)) {
+				uri = next.getValue();
+			}
+		}
+		return oid != null && uri != null ? new String[]{oid, uri} : null;
+	}
+
+	/**
+	 * Removes the mappings of a NamingSystem entry, unless another NamingSystem has replaced them since.
+	 */
+	public synchronized void remove(ResourceManifestEntry theEntry) {
+		String[] oidAndUri = oidAndUri(theEntry);
+		if (oidAndUri != null) {
+			myUriByOid.remove(oidAndUri[0], oidAndUri[1]);
+			myOidByUri.remove(oidAndUri[1], oidAndUri[0]);
+		}
+	}
+
+	/**
+	 * @param theOid the oid, with or without <code>urn:oid:</code> prefix
+	 * @return the uri of the NamingSystem with the oid, or null
+	 */
+	public String getUri(String theOid) {
+		return theOid != null ? myUriByOid.get(stripOidPrefix(theOid)) : null;
+	}
+
+	/**
+	 * @return the oid (without prefix) of the NamingSystem with the uri, or null
+	 */
+	public String getOid(String theUri) {
+		return theUri != null ? myOidByUri.get(theUri) : null;
+	}
+
+	public int size() {
+		return myUriByOid.size();
+	}
+
+	private static String stripOidPrefix(String theOid) {
+		return theOid.startsWith(OID_PREFIX) ? theOid.substring(OID_PREFIX.length()) : theOid;
+	}
+}
@@ -0,0 +1,72 @@
+package ch.ahdis.matchbox.conformance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Manifest of all conformance resources installed from the implementation guides, filled by the package installers.
+ * It is an index of what is available without having to search the database or parse the resources. The oid and uri
+ * unique ids of the NamingSystems are additionally indexed in an {@link OidUriIndex}.
+ */
+public class ResourceManifest {
+
+	// resource type -> entries, in installation order
+	private final Map<String, List<ResourceManifestEntry>> myEntriesByType = new ConcurrentHashMap<>();
+	private final OidUriIndex myOidUriIndex = new OidUriIndex();
+
+	public void add(ResourceManifestEntry theEntry) {
+		myEntriesByType.computeIfAbsent(theEntry.getResourceType(), t -> new CopyOnWriteArrayList<>()).add(theEntry);
+		myOidUriIndex.add(theEntry);
+	}
+
+	public void remove(ResourceManifestEntry theEntry) {
+		List<ResourceManifestEntry> entries = myEntriesByType.get(theEntry.getResourceType());
+		if (entries != null && entries.remove(theEntry)) {
+			myOidUriIndex.remove(theEntry);
+		}
+	}
+
+	/**
+	 * Removes the entries of an earlier installation of the package, called before it is installed again.
+	 *
+	 * @param thePackageId name#version
+	 */
+	public void removePackage(String thePackageId) {
+		for (List<ResourceManifestEntry> entries : myEntriesByType.values()) {
+			for (ResourceManifestEntry next : entries) {
+				if (thePackageId.equals(next.getPackageId())) {
+					remove(next);
+				}
+			}
+		}
+	}
+
+	public OidUriIndex getOidUriIndex() {
+		return myOidUriIndex;
+	}
+
+	public List<ResourceManifestEntry> getEntries(String theResourceType) {
+		List<ResourceManifestEntry> retVal = myEntriesByType.get(theResourceType);
+		return retVal != null ? Collections.unmodifiableList(retVal) : Collections.emptyList();
+	}
+
+	public List<ResourceManifestEntry> getAllEntries() {
+		List<ResourceManifestEntry> retVal = new ArrayList<>();
+		for (List<ResourceManifestEntry> next : myEntriesByType.values()) {
+			retVal.addAll(next);
+		}
+		return retVal;
+	}
+
+	public int size() {
+		int retVal = 0;
+		for (List<ResourceManifestEntry> next : myEntriesByType.values()) {
+			retVal += next.size();
+		}
+		return retVal;
+	}
+}
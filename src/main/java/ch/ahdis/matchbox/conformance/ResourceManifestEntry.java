@@ -0,0 +1,109 @@
+package ch.ahdis.matchbox.conformance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The identifying elements of an installed conformance resource (url, version, status and, for NamingSystems, the
+ * unique ids), extracted once when the package is installed.
+ */
+public class ResourceManifestEntry {
+
+	public static final String STATUS_ACTIVE = "active";
+	public static final String STATUS_DRAFT = "draft";
+
+	private final String myResourceType;
+	private final String myId;
+	private String myPackageId;
+	private String myUrl;
+	private String myVersion;
+	private String myStatus;
+	private final List<UniqueId> myUniqueIds = new ArrayList<>();
+
+	public ResourceManifestEntry(String theResourceType, String theId) {
+		myResourceType = theResourceType;
+		myId = theId;
+	}
+
+	public String getResourceType() {
+		return myResourceType;
+	}
+
+	public String getId() {
+		return myId;
+	}
+
+	/**
+	 * @return name#version of the package the resource was installed from
+	 */
+	public String getPackageId() {
+		return myPackageId;
+	}
+
+	public void setPackageId(String thePackageId) {
+		myPackageId = thePackageId;
+	}
+
+	public String getUrl() {
+		return myUrl;
+	}
+
+	public void setUrl(String theUrl) {
+		myUrl = theUrl;
+	}
+
+	public String getVersion() {
+		return myVersion;
+	}
+
+	public void setVersion(String theVersion) {
+		myVersion = theVersion;
+	}
+
+	/**
+	 * @return the status, null if the resource has none or it has not been read yet (lazily indexed resources)
+	 */
+	public String getStatus() {
+		return myStatus;
+	}
+
+	public void setStatus(String theStatus) {
+		myStatus = theStatus;
+	}
+
+	/**
+	 * Resources are installed if they have no status or if it is "active" or "draft".
+	 */
+	public boolean isInstallable() {
+		return myStatus == null || STATUS_ACTIVE.equals(myStatus) || STATUS_DRAFT.equals(myStatus);
+	}
+
+	public List<UniqueId> getUniqueIds() {
+		return myUniqueIds;
+	}
+
+	public void addUniqueId(String theType, String theValue) {
+		myUniqueIds.add(new UniqueId(theType, theValue));
+	}
+
+	public static class UniqueId {
+		private final String myType;
+		private final String myValue;
+
+		public UniqueId(String theType, String theValue) {
+			myType = theType;
+			myValue = theValue;
+		}
+
+		/**
+		 * @return oid, uri, uuid or other
+		 */
+		public String getType() {
+			return myType;
+		}
+
+		public String getValue() {
+			return myValue;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package ch.ahdis.matchbox.conformance;
+
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.FhirTerser.CompiledPath;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads url, version, status and the NamingSystem unique ids of a resource in one pass. The paths are compiled once
+ * per resource class ({@link FhirTerser#compilePath}) and shared, instead of evaluating FHIRPath or creating a
+ * terser per resource.
+ * Thread safe.
+ */
+public class ResourceManifestExtractor {
+
+	private final FhirContext myFhirContext;
+	private final FhirTerser myTerser;
+	private final Map<Class<?>, Accessors> myAccessors = new ConcurrentHashMap<>();
+
+	public ResourceManifestExtractor(FhirContext theFhirContext) {
+		myFhirContext = theFhirContext;
+		myTerser = theFhirContext.newTerser();
+	}
+
+	public ResourceManifestEntry extract(IBaseResource theResource) {
+		Accessors accessors = myAccessors.computeIfAbsent(theResource.getClass(), c -> new Accessors(myTerser, myFhirContext.getResourceDefinition(theResource)));
+
+		ResourceManifestEntry retVal = new ResourceManifestEntry(accessors.myResourceType, theResource.getIdElement().getIdPart());
+		retVal.setUrl(getPrimitive(accessors.myUrl, theResource));
+		retVal.setVersion(getPrimitive(accessors.myVersion, theResource));
+		retVal.setStatus(getPrimitive(accessors.myStatus, theResource));
+		if (accessors.myUniqueId != null) {
+			for (IBase uniqueId : accessors.myUniqueId.getValues(theResource, IBase.class)) {
+				String value = getPrimitive(accessors.myUniqueIdValue, uniqueId);
+				if (value != null) {
+					retVal.addUniqueId(getPrimitive(accessors.myUniqueIdType, uniqueId), value);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private static String getPrimitive(CompiledPath thePath, IBase theTarget) {
+		if (thePath == null) {
+			return null;
+		}
+		IPrimitiveType<?> value = thePath.getSingleValueOrNull(theTarget, IPrimitiveType.class);
+		return value != null ? value.getValueAsString() : null;
+	}
+
+	private static class Accessors {
+		private final String myResourceType;
+		private final CompiledPath myUrl;
+		private final CompiledPath myVersion;
+		private final CompiledPath myStatus;
+		private final CompiledPath myUniqueId;
+		private final CompiledPath myUniqueIdType;
+		private final CompiledPath myUniqueIdValue;
+
+		private Accessors(FhirTerser theTerser, RuntimeResourceDefinition theDefinition) {
+			myResourceType = theDefinition.getName();
+			myUrl = compileIfPresent(theTerser, theDefinition, "url");
+			myVersion = compileIfPresent(theTerser, theDefinition, "version");
+			myStatus = compileIfPresent(theTerser, theDefinition, "status");
+			if ("NamingSystem".equals(myResourceType)) {
+				myUniqueId = theTerser.compilePath(theDefinition.getImplementingClass(), "uniqueId");
+				BaseRuntimeElementCompositeDefinition<?> uniqueIdDefinition = (BaseRuntimeElementCompositeDefinition<?>) theDefinition.getChildByName("uniqueId").getChildByName("uniqueId");
+				myUniqueIdType = theTerser.compilePath(uniqueIdDefinition.getImplementingClass(), "type");
+				myUniqueIdValue = theTerser.compilePath(uniqueIdDefinition.getImplementingClass(), "value");
+			} else {
+				myUniqueId = null;
+				myUniqueIdType = null;
+				myUniqueIdValue = null;
+			}
+		}
+
+		private static CompiledPath compileIfPresent(FhirTerser theTerser, RuntimeResourceDefinition theDefinition, String thePath) {
+			return theDefinition.getChildByName(thePath) != null ? theTerser.compilePath(theDefinition.getImplementingClass(), thePath) : null;
+		}
+	}
+}
@@ -1,72 +1,88 @@
 package ch.ahdis.matchbox.mappinglanguage;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
-import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
-import ca.uhn.fhir.rest.api.SortOrderEnum;
-import ca.uhn.fhir.rest.api.SortSpec;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
-import ca.uhn.fhir.rest.param.TokenParam;
-import ca.uhn.fhir.rest.param.UriParam;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
-import ch.ahdis.fhir.hapi.jpa.validation.JpaExtendedValidationSupportChain;
+import ch.ahdis.matchbox.conformance.IConformanceResourceProvider;
+import ch.ahdis.matchbox.conformance.OidUriIndex;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
 import org.hl7.fhir.common.hapi.validation.validator.VersionSpecificWorkerContextWrapper;
 import org.hl7.fhir.common.hapi.validation.validator.VersionTypeConverterR4;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.StructureDefinition.TypeDerivationRule;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.utils.ToolingExtensions;
 import org.hl7.fhir.r5.context.SimpleWorkerContext.IValidatorFactory;
 import org.hl7.fhir.r5.formats.FormatUtilities;
+import org.hl7.fhir.r5.model.CodeableConcept;
+import org.hl7.fhir.r5.model.Coding;
 import org.hl7.fhir.r5.model.ConceptMap;
 import org.hl7.fhir.r5.model.Resource;
 import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.r5.model.StructureMap;
+import org.hl7.fhir.r5.terminologies.ValueSetExpander;
 import org.hl7.fhir.r5.utils.validation.IResourceValidator;
 import org.hl7.fhir.utilities.OIDUtils;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationOptions;
 import org.hl7.fhir.validation.instance.InstanceValidatorFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
 
 import javax.annotation.Nullable;
-import javax.annotation.PostConstruct;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
 /**
  * Adaptions for StructrueMaps transformation in 5 using
  * VersionSpecificWorkerContextWrapper
+ * <p>
+ * ConceptMaps and StructureMaps are fetched as R4 resources and converted to R5 on every lookup; the converted
+ * resources are kept per resource id and reused as long as the fetched resource has the same meta.versionId (or is
+ * the same instance, for resources without version). The conversions done and avoided are published as meters.
+ * Converted StructureMaps are shared read-only; the private copies used by the transformations are prepared for the
+ * {@link UuidGenerator}, see {@link #borrowCopies}.
  */
-public class ConvertingWorkerContext extends VersionSpecificWorkerContextWrapper {
+public class ConvertingWorkerContext extends VersionSpecificWorkerContextWrapper implements MeterBinder {
 	private static final Logger ourLog = LoggerFactory.getLogger(ConvertingWorkerContext.class);
 	static private IValidatorFactory validatorFactory = null;
 	private final IVersionTypeConverter myModelConverter;
 	protected FhirContext myFhirCtx;
-	@Autowired
-	ApplicationContext applicationContext;
-	private List<StructureDefinition> myAllStructures = null;
-	private DaoRegistry myDaoRegistry;
+	private volatile CoreStructures myCoreStructures = null;
+	private final IConformanceResourceProvider myConformanceResourceProvider;
+	private final OidUriIndex myOidUriIndex;
+	// resource type/id of the R4 resource -> conversion
+	private final Cache<String, Conversion> myConversions = Caffeine.newBuilder().maximumSize(10000).build();
+	private final LongAdder myConversionsAvoided = new LongAdder();
+	private final LongAdder myConversionsPerformed = new LongAdder();
+	private final LocalTerminologyService myTerminologyService = new LocalTerminologyService(this);
+	// converted map instance -> private copies of it and its imports not used by a transformation at the moment
+	private final Cache<StructureMap, Queue<StructureMapCopies>> myIdleCopies = Caffeine.newBuilder().weakKeys().build();
+	// copies used by the transformation running on the thread
+	private final ThreadLocal<StructureMapCopies> myCurrentCopies = new ThreadLocal<>();
+	private final List<Runnable> myInstallListeners = new CopyOnWriteArrayList<>();
 
-	public ConvertingWorkerContext(JpaExtendedValidationSupportChain myValidationSupport) throws IOException, FHIRException {
+	public ConvertingWorkerContext(FhirContext theFhirContext, ValidationSupportChain myValidationSupport, IConformanceResourceProvider theConformanceResourceProvider, OidUriIndex theOidUriIndex) throws IOException, FHIRException {
 		super(myValidationSupport, new VersionTypeConverterR4());
 		this.myModelConverter = new VersionTypeConverterR4();
 		if (ConvertingWorkerContext.validatorFactory == null) {
 			ConvertingWorkerContext.validatorFactory = new InstanceValidatorFactory();
 		}
-		this.myFhirCtx = FhirContext.forR4();
-		this.myDaoRegistry = new DaoRegistry(this.myFhirCtx);
-	}
-
-	@PostConstruct
-	private void postConstruct() {
-		this.myDaoRegistry.setApplicationContext(this.applicationContext);
+		this.myFhirCtx = theFhirContext;
+		this.myConformanceResourceProvider = theConformanceResourceProvider;
+		this.myOidUriIndex = theOidUriIndex;
 	}
 
 	@Override
@@ -82,19 +98,18 @@ public class ConvertingWorkerContext extends VersionSpecificWorkerContextWrapper
 	// this function gets now only the base StructureDefinition for R4 which the FHIRPathEngine is using to initialize itself
 	@Override
 	public List<StructureDefinition> allStructures() {
-		List<StructureDefinition> retVal = myAllStructures;
+		return coreStructures().getStructures();
+	}
+
+	private CoreStructures coreStructures() {
+		CoreStructures retVal = myCoreStructures;
 		if (retVal == null) {
-			DefaultProfileValidationSupport defaultProfileValidationSupport = new DefaultProfileValidationSupport(FhirContext.forR4Cached());
-			retVal = new ArrayList<>();
-			for (IBaseResource next : defaultProfileValidationSupport.fetchAllStructureDefinitions()) {
-				try {
-					Resource converted = myModelConverter.toCanonical(next);
-					retVal.add((StructureDefinition) converted);
-				} catch (FHIRException e) {
-					throw new InternalErrorException(e);
-				}
+			try {
+				retVal = CoreStructures.load(myFhirCtx, myModelConverter);
+			} catch (FHIRException e) {
+				throw new InternalErrorException(e);
 			}
-			myAllStructures = retVal;
+			myCoreStructures = retVal;
 		}
 		return retVal;
 	}
@@ -113,23 +128,14 @@ public class ConvertingWorkerContext extends VersionSpecificWorkerContextWrapper
 		} else {
 			type = typeName;
 		}
-		for (StructureDefinition sd : this.allStructures()) {
-			if (sd.getDerivation() == StructureDefinition.TypeDerivationRule.SPECIALIZATION && !sd.getUrl().startsWith("http://hl7.org/fhir/StructureDefinition/de-")) {
-				if (type.equals(sd.getType()) && (ns == null || ns.equals(FormatUtilities.FHIR_NS)) && !org.hl7.fhir.r5.utils.ToolingExtensions.hasExtension(sd, "http://hl7.org/fhir/StructureDefinition/elementdefinition-namespace"))
-					return sd;
+		if (ns == null || ns.equals(FormatUtilities.FHIR_NS)) {
+			StructureDefinition sd = coreStructures().getByType(type);
+			if (sd != null) {
+				return sd;
 			}
 		}
-		if (myDaoRegistry != null) {
-			IBundleProvider search;
-			SearchParameterMap params = new SearchParameterMap();
-			params.setLoadSynchronousUpTo(100);
-			params.add(org.hl7.fhir.r4.model.StructureDefinition.SP_TYPE, new UriParam(type));
-			search = myDaoRegistry.getResourceDao("StructureDefinition").search(params);
-			Integer size = search.size();
-			if (size == null || size == 0) {
-				return null;
-			}
-			for (IBaseResource resource : search.getAllResources()) {
+		if (myConformanceResourceProvider != null) {
+			for (IBaseResource resource : myConformanceResourceProvider.fetchStructureDefinitionsByType(type)) {
 				org.hl7.fhir.r4.model.StructureDefinition sd = (org.hl7.fhir.r4.model.StructureDefinition) resource;
 				if (sd.getDerivation() == TypeDerivationRule.SPECIALIZATION && !sd.getUrl().startsWith("http://hl7.org/fhir/StructureDefinition/de-")) {
 					String sns = ToolingExtensions.readStringExtension(sd, "http://hl7.org/fhir/StructureDefinition/elementdefinition-namespace");
@@ -141,6 +147,13 @@ public class ConvertingWorkerContext extends VersionSpecificWorkerContextWrapper
 		return null;
 	}
 
+	/**
+	 * @return the R4 FhirContext shared by the application
+	 */
+	public FhirContext getFhirContext() {
+		return myFhirCtx;
+	}
+
 	public <T extends org.hl7.fhir.r4.model.Resource> T fetchResourceAsR4(Class<T> class_, String uri) {
 		return (T) doFetchResource(class_, uri);
 	}
@@ -157,9 +170,70 @@ public class ConvertingWorkerContext extends VersionSpecificWorkerContextWrapper
 		return theResource;
 	}
 
+	/**
+	 * @return the converted map, or the private copy of it while a transformation runs on the thread, see
+	 * {@link #borrowCopies}
+	 */
 	@Override
 	public StructureMap getTransform(String url) {
-		return fixMap((StructureMap) myModelConverter.toCanonical(doFetchResource(org.hl7.fhir.r4.model.StructureMap.class, url)));
+		StructureMap retVal = getSharedTransform(url);
+		StructureMapCopies copies = myCurrentCopies.get();
+		return copies != null && retVal != null ? copies.get(retVal) : retVal;
+	}
+
+	/**
+	 * @return the converted map shared by all threads, which must not be modified
+	 */
+	private StructureMap getSharedTransform(String url) {
+		return (StructureMap) toCanonical(doFetchResource(org.hl7.fhir.r4.model.StructureMap.class, url));
+	}
+
+	/**
+	 * Provides private copies of the map and of the maps it imports to the transformation about to run on the
+	 * thread: until {@link #returnCopies} is called, {@link #getTransform} returns the copies instead of the shared
+	 * converted maps. The engine stores resolved groups and parsed expressions in the user data of the groups and
+	 * rules, which must not be written while another transformation reads them.
+	 * <p>
+	 * Idle copies are only reused if none of the maps they were copied from has been converted again since: the groups
+	 * resolved into the copies point to the copies of the imported maps of that time.
+	 *
+	 * @return the private copy of the map
+	 */
+	public StructureMap borrowCopies(StructureMap theMap) {
+		Queue<StructureMapCopies> idle = myIdleCopies.get(theMap, m -> new ConcurrentLinkedQueue<>());
+		StructureMapCopies copies;
+		do {
+			copies = idle.poll();
+		} while (copies != null && !copies.isCopyOfCurrent(this::getSharedTransform));
+		if (copies == null) {
+			copies = new StructureMapCopies();
+		}
+		myCurrentCopies.set(copies);
+		return copies.get(theMap);
+	}
+
+	/**
+	 * Ends the transformation of the thread, the copies are kept for the next transformation of the map.
+	 */
+	public void returnCopies(StructureMap theMap) {
+		StructureMapCopies copies = myCurrentCopies.get();
+		myCurrentCopies.remove();
+		if (copies != null) {
+			myIdleCopies.get(theMap, m -> new ConcurrentLinkedQueue<>()).add(copies);
+		}
+	}
+
+	/**
+	 * @return the group resolution of the map, built (and stored into the groups) on the first call for the instance;
+	 * it is kept in the user data of the map, so that it is dropped with the map
+	 */
+	public GroupResolutionTable getGroupResolution(StructureMap theMap) {
+		GroupResolutionTable retVal = (GroupResolutionTable) theMap.getUserData(GroupResolutionTable.class.getName());
+		if (retVal == null) {
+			retVal = new GroupResolutionTable(this, theMap);
+			theMap.setUserData(GroupResolutionTable.class.getName(), retVal);
+		}
+		return retVal;
 	}
 
 	@Override
@@ -167,12 +241,77 @@ public class ConvertingWorkerContext extends VersionSpecificWorkerContextWrapper
 		if (isBlank(uri)) {
 			return null;
 		}
+		if (class_ == StructureDefinition.class) {
+			StructureDefinition core = coreStructures().getByUrl(uri);
+			if (core != null) {
+				return (T) core;
+			}
+		}
 		if (class_ != null && "ConceptMap".equals(class_.getSimpleName())) {
-			return (T) myModelConverter.toCanonical(doFetchResource(org.hl7.fhir.r4.model.ConceptMap.class, uri));
+			return (T) toCanonical(doFetchResource(org.hl7.fhir.r4.model.ConceptMap.class, uri));
 		}
 		return super.fetchResource(class_, uri);
 	}
 
+	/**
+	 * Converts the fetched R4 resource or returns the conversion of the same resource version done before. The
+	 * returned resource is shared and must not be modified.
+	 */
+	private Resource toCanonical(IBaseResource theResource) {
+		if (theResource == null) {
+			return null;
+		}
+		IIdType id = theResource.getIdElement();
+		if (id == null || !id.hasIdPart()) {
+			myConversionsPerformed.increment();
+			return convert(theResource);
+		}
+		String key = myFhirCtx.getResourceType(theResource) + "/" + id.getIdPart();
+		String versionId = theResource.getMeta().getVersionId();
+		if (versionId == null) {
+			versionId = id.getVersionIdPart();
+		}
+		Conversion conversion = myConversions.getIfPresent(key);
+		if (conversion != null && conversion.isConversionOf(theResource, versionId)) {
+			myConversionsAvoided.increment();
+			return conversion.myConverted;
+		}
+		myConversionsPerformed.increment();
+		Resource retVal = convert(theResource);
+		// replaces the conversion of an older version
+		myConversions.put(key, new Conversion(theResource, versionId, retVal));
+		return retVal;
+	}
+
+	private Resource convert(IBaseResource theResource) {
+		Resource retVal = myModelConverter.toCanonical(theResource);
+		if (retVal instanceof StructureMap) {
+			// before the map is shared, the transformations only read it
+			fixMap((StructureMap) retVal);
+		}
+		return retVal;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		FunctionCounter.builder("matchbox.conversion", myConversionsPerformed, LongAdder::sum)
+			.description("R4 to R5 conversions of ConceptMaps and StructureMaps")
+			.tag("result", "performed")
+			.register(theRegistry);
+		FunctionCounter.builder("matchbox.conversion", myConversionsAvoided, LongAdder::sum)
+			.description("R4 to R5 conversions of ConceptMaps and StructureMaps")
+			.tag("result", "avoided")
+			.register(theRegistry);
+		FunctionCounter.builder("matchbox.fetch.notfound", this, ConvertingWorkerContext::getNegativeCacheHits)
+			.description("Lookups of unknown canonicals answered from the negative cache")
+			.tag("result", "cached")
+			.register(theRegistry);
+		FunctionCounter.builder("matchbox.fetch.notfound", this, ConvertingWorkerContext::getNegativeCacheMisses)
+			.description("Lookups of unknown canonicals answered by the validation support chain")
+			.tag("result", "looked-up")
+			.register(theRegistry);
+	}
+
 	private <T extends IBaseResource> IBaseResource doFetchResource(@Nullable Class<T> theClass, String theUri) {
 		if (theClass == null || "Resource".equals(theClass.getSimpleName())) {
 			return doFetchResource(ValueSet.class, theUri);
@@ -180,45 +319,106 @@ public class ConvertingWorkerContext extends VersionSpecificWorkerContextWrapper
 
 		String resourceName = myFhirCtx.getResourceType(theClass);
 
-		IBundleProvider search;
 		switch (resourceName) {
 			case "ValueSet":
 			case "StructureMap":
 			case "ConceptMap":
-				int versionSeparator = theUri.lastIndexOf('|');
-				SearchParameterMap params = new SearchParameterMap();
-				params.setLoadSynchronousUpTo(1);
-				if (versionSeparator != -1) {
-					params.add(ValueSet.SP_VERSION, new TokenParam(theUri.substring(versionSeparator + 1)));
-					params.add(ValueSet.SP_URL, new UriParam(theUri.substring(0, versionSeparator)));
-				} else {
-					params.add(ValueSet.SP_URL, new UriParam(theUri));
-				}
-				params.setSort(new SortSpec("_lastUpdated").setOrder(SortOrderEnum.DESC));
-				search = myDaoRegistry.getResourceDao(resourceName).search(params);
-				break;
+				return myConformanceResourceProvider.fetchByUrl(resourceName, theUri);
 			default:
 				throw new IllegalArgumentException("Can't fetch resource type: " + resourceName);
 		}
+	}
 
-		Integer size = search.size();
-		if (size == null || size == 0) {
-			return null;
+	/**
+	 * @return the uri of the installed NamingSystem with the oid, else the uri of the well known oids of
+	 * {@link OIDUtils}, or null
+	 */
+	public String oid2Uri(String oid) {
+		String retVal = myOidUriIndex.getUri(oid);
+		return retVal != null ? retVal : OIDUtils.getUriForOid(oid);
+	}
+
+	/**
+	 * @return the oid of the installed NamingSystem with the uri, or null
+	 */
+	public String uri2Oid(String uri) {
+		return myOidUriIndex.getOid(uri);
+	}
+
+	/**
+	 * Called after resources have been installed, drops the fetched resources, the canonicals not found and the
+	 * ValueSet memberships built from the resources before and notifies the listeners.
+	 */
+	public void resourcesInstalled() {
+		invalidateFetchCaches();
+		myTerminologyService.clear();
+		for (Runnable next : myInstallListeners) {
+			next.run();
 		}
+	}
+
+	/**
+	 * @param theListener run by {@link #resourcesInstalled}, e.g. to drop results computed with the resources before
+	 */
+	public void addInstallListener(Runnable theListener) {
+		myInstallListeners.add(theListener);
+	}
 
-		if (size > 1) {
-			ourLog.warn("Found multiple {} instances with URL search value of: {}", resourceName, theUri);
+	@Override
+	public ValidationResult validateCode(ValidationOptions theOptions, String code, org.hl7.fhir.r5.model.ValueSet theValueSet) {
+		return myTerminologyService.validateCode(null, code, theValueSet);
+	}
+
+	@Override
+	public ValidationResult validateCode(ValidationOptions theOptions, Coding theCoding, org.hl7.fhir.r5.model.ValueSet theValueSet) {
+		return myTerminologyService.validateCode(theCoding.getSystem(), theCoding.getCode(), theValueSet);
+	}
+
+	@Override
+	public ValidationResult validateCode(ValidationOptions theOptions, String theSystem, String version, String theCode, String display, org.hl7.fhir.r5.model.ValueSet theValueSet) {
+		return myTerminologyService.validateCode(theSystem, theCode, theValueSet);
+	}
+
+	@Override
+	public ValidationResult validateCode(ValidationOptions theOptions, CodeableConcept code, org.hl7.fhir.r5.model.ValueSet theVs) {
+		ValidationResult retVal = null;
+		for (Coding coding : code.getCoding()) {
+			retVal = myTerminologyService.validateCode(coding.getSystem(), coding.getCode(), theVs);
+			if (retVal.isOk()) {
+				return retVal;
+			}
 		}
+		return retVal != null ? retVal : new ValidationResult(ValidationMessage.IssueSeverity.ERROR, "No coding to validate");
+	}
 
-		return search.getResources(0, 1).get(0);
+	@Override
+	public ValueSetExpander.ValueSetExpansionOutcome expandVS(org.hl7.fhir.r5.model.ValueSet source, boolean cacheOk, boolean Hierarchical) {
+		return myTerminologyService.expand(source, false);
 	}
 
-	public String oid2Uri(String oid) {
-		return OIDUtils.getUriForOid(oid);
+	@Override
+	public ValueSetExpander.ValueSetExpansionOutcome expandVS(org.hl7.fhir.r5.model.ValueSet source, boolean cacheOk, boolean heiarchical, boolean incompleteOk) {
+		return myTerminologyService.expand(source, incompleteOk);
 	}
 
 	@Override
 	public IResourceValidator newValidator() throws FHIRException {
 		return validatorFactory.makeValidator(this, null);
 	}
+
+	private static class Conversion {
+		private final IBaseResource mySource;
+		private final String myVersionId;
+		private final Resource myConverted;
+
+		private Conversion(IBaseResource theSource, String theVersionId, Resource theConverted) {
+			mySource = theSource;
+			myVersionId = theVersionId;
+			myConverted = theConverted;
+		}
+
+		private boolean isConversionOf(IBaseResource theResource, String theVersionId) {
+			return theResource == mySource || (theVersionId != null && theVersionId.equals(myVersionId));
+		}
+	}
 }
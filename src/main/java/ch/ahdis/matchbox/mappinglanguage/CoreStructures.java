@@ -0,0 +1,138 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import org.hl7.fhir.common.hapi.validation.validator.VersionSpecificWorkerContextWrapper.IVersionTypeConverter;
+import org.hl7.fhir.common.hapi.validation.validator.VersionTypeConverterR4;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.formats.IParser;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The R4 core StructureDefinitions (with snapshots) converted to R5, with indexes by url and by type.
+ * <p>
+ * The conversion is done at build time: {@link #main} writes the converted structures as gzipped R5 json bundle to
+ * {@link #RESOURCE} (exec-maven-plugin, process-classes phase). At runtime the bundle is read from the classpath,
+ * which avoids parsing the R4 definitions and converting them on the first call; without the bundle (e.g. when
+ * started from the IDE) the structures are converted as before.
+ */
+public class CoreStructures {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(CoreStructures.class);
+
+	public static final String RESOURCE = "matchbox/r5-core-structures.json.gz";
+
+	private static final String NAMESPACE_EXTENSION = "http://hl7.org/fhir/StructureDefinition/elementdefinition-namespace";
+
+	private final List<StructureDefinition> myStructures;
+	private final Map<String, StructureDefinition> myByUrl = new HashMap<>();
+	private final Map<String, StructureDefinition> myByType = new HashMap<>();
+
+	private CoreStructures(List<StructureDefinition> theStructures) {
+		myStructures = Collections.unmodifiableList(theStructures);
+		for (StructureDefinition sd : theStructures) {
+			myByUrl.putIfAbsent(sd.getUrl(), sd);
+			if (sd.getDerivation() == StructureDefinition.TypeDerivationRule.SPECIALIZATION && !sd.getUrl().startsWith("http://hl7.org/fhir/StructureDefinition/de-") && !ToolingExtensions.hasExtension(sd, NAMESPACE_EXTENSION)) {
+				myByType.putIfAbsent(sd.getType(), sd);
+			}
+		}
+	}
+
+	public List<StructureDefinition> getStructures() {
+		return myStructures;
+	}
+
+	/**
+	 * @return the core structure with the canonical url or null
+	 */
+	public StructureDefinition getByUrl(String theUrl) {
+		return myByUrl.get(theUrl);
+	}
+
+	/**
+	 * @return the first specialization (not a data element, not a logical model with namespace) of the type or null
+	 */
+	public StructureDefinition getByType(String theType) {
+		return myByType.get(theType);
+	}
+
+	/**
+	 * @return the structures from the prebuilt bundle, or converted from the R4 definitions if the bundle is missing
+	 */
+	public static CoreStructures load(FhirContext theFhirContext, IVersionTypeConverter theConverter) {
+		long start = System.currentTimeMillis();
+		List<StructureDefinition> structures = null;
+		try (InputStream is = CoreStructures.class.getClassLoader().getResourceAsStream(RESOURCE)) {
+			if (is != null) {
+				structures = read(is);
+			}
+		} catch (IOException | RuntimeException e) {
+			ourLog.warn("Unable to read {}, converting the core structures: {}", RESOURCE, e.getMessage());
+		}
+		boolean prebuilt = structures != null;
+		if (!prebuilt) {
+			structures = convert(theFhirContext, theConverter);
+		}
+		ourLog.info("Loaded {} core structures in {} ms ({})", structures.size(), System.currentTimeMillis() - start, prebuilt ? "prebuilt" : "converted");
+		return new CoreStructures(structures);
+	}
+
+	private static List<StructureDefinition> read(InputStream theStream) throws IOException {
+		Resource bundle = new JsonParser().parse(new GZIPInputStream(theStream));
+		List<StructureDefinition> retVal = new ArrayList<>();
+		for (Bundle.BundleEntryComponent entry : ((Bundle) bundle).getEntry()) {
+			retVal.add((StructureDefinition) entry.getResource());
+		}
+		return retVal;
+	}
+
+	private static List<StructureDefinition> convert(FhirContext theFhirContext, IVersionTypeConverter theConverter) {
+		DefaultProfileValidationSupport defaultProfileValidationSupport = new DefaultProfileValidationSupport(theFhirContext);
+		List<StructureDefinition> retVal = new ArrayList<>();
+		for (IBaseResource next : defaultProfileValidationSupport.fetchAllStructureDefinitions()) {
+			retVal.add((StructureDefinition) theConverter.toCanonical(next));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Writes the converted core structures as gzipped R5 json bundle to the file given as argument.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			throw new IllegalArgumentException("Usage: CoreStructures <output file>");
+		}
+		File output = new File(args[0]);
+		output.getParentFile().mkdirs();
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.COLLECTION);
+		for (StructureDefinition sd : convert(FhirContext.forR4(), new VersionTypeConverterR4())) {
+			bundle.addEntry().setFullUrl(sd.getUrl()).setResource(sd);
+		}
+		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(output))) {
+			JsonParser parser = new JsonParser();
+			parser.setOutputStyle(IParser.OutputStyle.NORMAL);
+			parser.compose(os, bundle);
+		}
+		ourLog.info("Wrote {} core structures to {}", bundle.getEntry().size(), output);
+	}
+}
@@ -0,0 +1,47 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+
+/**
+ * copy functions for elementmodel.Element
+ */
+public class ElementModelCopy {
+
+	private ElementModelCopy() {
+	}
+
+	/**
+	 * Copies the element itself (name, property, type, value, path, comments) with an empty list of children; the caller
+	 * decides which children the copy shares with the original.
+	 */
+	public static Element shallowCopy(Element theElement) {
+		Element retVal = new Element(theElement.getName(), theElement.getProperty(), theElement.getType(), theElement.getValue());
+		retVal.setPath(theElement.getPath());
+		if (theElement.getExplicitType() != null) {
+			retVal.setExplicitType(theElement.getExplicitType());
+		}
+		if (theElement.getXhtml() != null) {
+			retVal.setXhtml(theElement.getXhtml());
+		}
+		if (theElement.getSpecial() != null || theElement.getElementProperty() != null) {
+			retVal.updateProperty(theElement.getProperty(), theElement.getSpecial(), theElement.getElementProperty());
+		}
+		if (!theElement.getComments().isEmpty()) {
+			retVal.getComments().addAll(theElement.getComments());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Copies the element and all its descendants, the copy shares no Element with the original.
+	 */
+	public static Element deepCopy(Element theElement) {
+		Element retVal = shallowCopy(theElement);
+		if (theElement.hasChildren()) {
+			for (Element child : theElement.getChildren()) {
+				retVal.getChildren().add(deepCopy(child));
+			}
+		}
+		return retVal;
+	}
+}
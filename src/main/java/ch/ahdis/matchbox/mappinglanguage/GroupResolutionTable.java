@@ -0,0 +1,328 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupComponent;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupInputComponent;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupRuleComponent;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupRuleDependentComponent;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupTypeMode;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapInputMode;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapStructureComponent;
+import org.hl7.fhir.r5.model.UriType;
+import org.hl7.fhir.r5.utils.structuremap.ResolvedGroup;
+import org.hl7.fhir.utilities.Utilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolution of the groups invoked by the groups of a StructureMap and its imports, by name (dependent rules and
+ * extends) and by type signature (rules mapping a source to a created target without dependent, using a
+ * <code>&lt;&lt;types&gt;&gt;</code> or <code>&lt;&lt;type+&gt;&gt;</code> group), built once per map instance.
+ * <p>
+ * The engine resolves a group by searching the map of the calling group, then its imports, and keeps the result as
+ * user data (<code>ref^name</code>, <code>types^source:target</code>) of the calling group. The table computes the
+ * same results up front and stores them there before the map is executed, so every invocation is a lookup already
+ * for the first document. References that can not be resolved here (wildcard imports, ambiguous names or types,
+ * types only known as urls) are left to the engine.
+ * <p>
+ * The user data of the groups is a plain HashMap, written by the table and by the engine. Both only write to the
+ * private copies of the maps used by one transformation (see {@link ConvertingWorkerContext#borrowCopies}): the table
+ * is built on the thread of the transformation before the engine runs, and the copies are handed to the next
+ * transformation only after this one has ended.
+ * <p>
+ * The user data keys are private to the engine, {@link #verifyEngine} checks at startup that the engine still uses
+ * them.
+ */
+public class GroupResolutionTable {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(GroupResolutionTable.class);
+
+	// user data keys of StructureMapUtilities.resolveGroupReference (ref^name) and resolveGroupByTypes
+	// (types^source:target) in FHIR core 5.6.43: the engine looks its resolutions up there before resolving, and stores
+	// them there; check the keys (and verifyEngine) when upgrading FHIR core
+	private static final String REF_KEY_PREFIX = "ref^";
+	private static final String TYPES_KEY_PREFIX = "types^";
+
+	// a map calling a group by name, for verifyEngine
+	private static final String PROBE_GROUP = "probe";
+	private static final String PROBE_MAP = "map \"http://matchbox.health/StructureMap/GroupResolutionProbe\" = \"GroupResolutionProbe\"\n"
+		+ "group main(source src : Coding, target tgt : Coding) {\n"
+		+ "  src -> tgt.system = 'http://matchbox.health/probe' then " + PROBE_GROUP + "(src, tgt) \"call\";\n"
+		+ "}\n"
+		+ "group " + PROBE_GROUP + "(source src : Coding, target tgt : Coding) {\n"
+		+ "  src -> tgt.code = 'probe' \"code\";\n"
+		+ "}\n";
+
+	// more than one group found, the engine reports the error
+	private static final ResolvedGroup AMBIGUOUS = new ResolvedGroup();
+
+	private final IWorkerContext myContext;
+	// url -> the map and the maps imported by it, in import order
+	private final Map<String, StructureMap> myMaps = new LinkedHashMap<>();
+	private final Map<String, List<StructureMap>> myImports = new HashMap<>();
+	// group name -> url of the first map (root first, then imports breadth first) defining it
+	private final Map<String, String> myOwners = new HashMap<>();
+	private int myResolvedNames;
+	private int myResolvedTypes;
+
+	public GroupResolutionTable(IWorkerContext theContext, StructureMap theMap) {
+		myContext = theContext;
+		collect(theMap);
+		for (StructureMap map : myMaps.values()) {
+			for (StructureMapGroupComponent group : map.getGroup()) {
+				myOwners.putIfAbsent(group.getName(), map.getUrl());
+			}
+		}
+		for (StructureMap map : myMaps.values()) {
+			Map<String, ResolvedGroup> byTypes = resolveByTypes(map);
+			for (StructureMapGroupComponent group : map.getGroup()) {
+				if (group.hasExtends()) {
+					seedName(map, group, group.getExtends());
+				}
+				seedRules(map, group, group.getRule());
+				if (!hasInferredRule(group.getRule())) {
+					continue;
+				}
+				for (Map.Entry<String, ResolvedGroup> next : byTypes.entrySet()) {
+					if (!group.hasUserData(next.getKey())) {
+						group.setUserData(next.getKey(), next.getValue());
+						myResolvedTypes++;
+					}
+				}
+			}
+		}
+		ourLog.debug("Resolved {} group references by name and {} by types for {} ({} maps)", myResolvedNames, myResolvedTypes, theMap.getUrl(), myMaps.size());
+	}
+
+	/**
+	 * Checks that the engine resolves groups with the user data seeded by the table, on a map calling a group by
+	 * name: transformed without table, the engine must have stored its own resolution under the key of the table and
+	 * found the same group as the table; transformed with the table, the engine must have used the seeded resolution
+	 * instead of resolving (and storing) it again.
+	 *
+	 * @return false, with a warning, if the engine does not use the seeded resolutions; the transformations are then
+	 * still correct, as the engine resolves the groups itself
+	 */
+	public static boolean verifyEngine(ConvertingWorkerContext theContext) {
+		String key = REF_KEY_PREFIX + PROBE_GROUP;
+		try {
+			StructureMap unseeded = parseProbe(theContext);
+			runProbe(theContext, unseeded);
+			Object engine = unseeded.getGroup().get(0).getUserData(key);
+
+			StructureMap seededMap = parseProbe(theContext);
+			new GroupResolutionTable(theContext, seededMap);
+			Object seeded = seededMap.getGroup().get(0).getUserData(key);
+			runProbe(theContext, seededMap);
+			Object used = seededMap.getGroup().get(0).getUserData(key);
+
+			if (!(engine instanceof ResolvedGroup) || !(seeded instanceof ResolvedGroup)) {
+				ourLog.warn("The StructureMap engine did not store its resolution of a group under {}, the group resolution table is not used by the engine", key);
+				return false;
+			}
+			if (!((ResolvedGroup) engine).target.getName().equals(((ResolvedGroup) seeded).target.getName())) {
+				ourLog.warn("The StructureMap engine resolved group {} to {}, the group resolution table to {}", PROBE_GROUP, ((ResolvedGroup) engine).target.getName(), ((ResolvedGroup) seeded).target.getName());
+				return false;
+			}
+			if (used != seeded) {
+				ourLog.warn("The StructureMap engine resolved group {} again instead of using the entry seeded by the group resolution table", PROBE_GROUP);
+				return false;
+			}
+			return true;
+		} catch (FHIRException | RuntimeException e) {
+			ourLog.warn("Unable to verify that the StructureMap engine uses the group resolution table", e);
+			return false;
+		}
+	}
+
+	private static StructureMap parseProbe(ConvertingWorkerContext theContext) throws FHIRException {
+		return newProbeUtilities(theContext).parse(PROBE_MAP, "GroupResolutionProbe");
+	}
+
+	private static void runProbe(ConvertingWorkerContext theContext, StructureMap theMap) throws FHIRException {
+		newProbeUtilities(theContext).transform(null, new Coding(), theMap, new Coding());
+	}
+
+	private static MatchboxStructureMapUtilities newProbeUtilities(ConvertingWorkerContext theContext) {
+		return new MatchboxStructureMapUtilities(theContext, new TransformSupportServices(theContext, new ArrayList<Base>()));
+	}
+
+	/**
+	 * @return the url of the map defining the group, or null if neither the map nor its imports define it
+	 */
+	public String getOwnerUrl(String theGroupName) {
+		return myOwners.get(theGroupName);
+	}
+
+	private void collect(StructureMap theMap) {
+		List<StructureMap> queue = new ArrayList<>();
+		queue.add(theMap);
+		myMaps.put(theMap.getUrl(), theMap);
+		for (int i = 0; i < queue.size(); i++) {
+			StructureMap map = queue.get(i);
+			List<StructureMap> imports = new ArrayList<>();
+			for (UriType imp : map.getImport()) {
+				if (imp.getValue().contains("*")) {
+					// resolved by the engine
+					imports = null;
+					break;
+				}
+				StructureMap imported = myMaps.get(imp.getValue());
+				if (imported == null) {
+					imported = myContext.getTransform(imp.getValue());
+					if (imported == null) {
+						imports = null;
+						break;
+					}
+					myMaps.put(imported.getUrl(), imported);
+					queue.add(imported);
+				}
+				imports.add(imported);
+			}
+			myImports.put(map.getUrl(), imports);
+		}
+	}
+
+	private void seedRules(StructureMap theMap, StructureMapGroupComponent theGroup, List<StructureMapGroupRuleComponent> theRules) {
+		for (StructureMapGroupRuleComponent rule : theRules) {
+			for (StructureMapGroupRuleDependentComponent dependent : rule.getDependent()) {
+				seedName(theMap, theGroup, dependent.getName());
+			}
+			seedRules(theMap, theGroup, rule.getRule());
+		}
+	}
+
+	/**
+	 * @return true if a rule maps one source variable to one target variable without dependent, i.e. the engine may
+	 * look up a group by the types of the variables
+	 */
+	private static boolean hasInferredRule(List<StructureMapGroupRuleComponent> theRules) {
+		for (StructureMapGroupRuleComponent rule : theRules) {
+			if (!rule.hasDependent() && rule.getSource().size() == 1 && rule.getSource().get(0).hasVariable() && rule.getTarget().size() == 1 && rule.getTarget().get(0).hasVariable()) {
+				return true;
+			}
+			if (hasInferredRule(rule.getRule())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void seedName(StructureMap theMap, StructureMapGroupComponent theGroup, String theName) {
+		String key = REF_KEY_PREFIX + theName;
+		if (theGroup.hasUserData(key)) {
+			return;
+		}
+		ResolvedGroup retVal = findByName(theMap, theName);
+		if (retVal != null) {
+			theGroup.setUserData(key, retVal);
+			myResolvedNames++;
+		}
+	}
+
+	/**
+	 * @return the single group with the name in the map, else the single group with the name in its imports, else null
+	 */
+	private ResolvedGroup findByName(StructureMap theMap, String theName) {
+		ResolvedGroup retVal = findByName(theMap, theName, null);
+		if (retVal != null) {
+			return retVal == AMBIGUOUS ? null : retVal;
+		}
+		List<StructureMap> imports = myImports.get(theMap.getUrl());
+		if (imports == null) {
+			return null;
+		}
+		for (StructureMap imported : imports) {
+			if (!imported.getUrl().equals(theMap.getUrl())) {
+				retVal = findByName(imported, theName, retVal);
+				if (retVal == AMBIGUOUS) {
+					return null;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private static ResolvedGroup findByName(StructureMap theMap, String theName, ResolvedGroup theFound) {
+		ResolvedGroup retVal = theFound;
+		for (StructureMapGroupComponent group : theMap.getGroup()) {
+			if (theName.equals(group.getName())) {
+				if (retVal != null) {
+					return AMBIGUOUS;
+				}
+				retVal = new ResolvedGroup();
+				retVal.targetMap = theMap;
+				retVal.target = group;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return user data key -> group, for the type signatures defined by exactly one group of the map
+	 */
+	private Map<String, ResolvedGroup> resolveByTypes(StructureMap theMap) {
+		Map<String, ResolvedGroup> retVal = new HashMap<>();
+		Map<String, Integer> counts = new HashMap<>();
+		for (StructureMapGroupComponent group : theMap.getGroup()) {
+			// as the engine (matchesByType), both type modes are used to resolve a source and target type pair
+			if ((group.getTypeMode() != StructureMapGroupTypeMode.TYPES && group.getTypeMode() != StructureMapGroupTypeMode.TYPEANDTYPES) || group.getInput().size() != 2) {
+				continue;
+			}
+			StructureMapGroupInputComponent source = group.getInput().get(0);
+			StructureMapGroupInputComponent target = group.getInput().get(1);
+			if (source.getMode() != StructureMapInputMode.SOURCE || target.getMode() != StructureMapInputMode.TARGET || !source.hasType() || !target.hasType()) {
+				continue;
+			}
+			String sourceType = resolveType(theMap, source.getType());
+			String targetType = resolveType(theMap, target.getType());
+			String key = TYPES_KEY_PREFIX + sourceType + ":" + targetType;
+			counts.merge(key, 1, Integer::sum);
+			// the engine compares with the fhirType() of the values, which is not an url
+			if (!Utilities.isAbsoluteUrl(sourceType) && !Utilities.isAbsoluteUrl(targetType)) {
+				ResolvedGroup resolved = new ResolvedGroup();
+				resolved.targetMap = theMap;
+				resolved.target = group;
+				retVal.put(key, resolved);
+			}
+		}
+		// ambiguous signatures are reported by the engine
+		counts.forEach((key, count) -> {
+			if (count > 1) {
+				retVal.remove(key);
+			}
+		});
+		return retVal;
+	}
+
+	/**
+	 * @return the type of the structure with the alias or url, else the stated type
+	 */
+	private String resolveType(StructureMap theMap, String theStatedType) {
+		String url = Utilities.isAbsoluteUrl(theStatedType) ? theStatedType : null;
+		for (StructureMapStructureComponent structure : theMap.getStructure()) {
+			if (structure.hasAlias() && theStatedType.equals(structure.getAlias())) {
+				url = structure.getUrl();
+				break;
+			}
+		}
+		if (url != null) {
+			StructureDefinition sd = myContext.fetchResource(StructureDefinition.class, url);
+			if (sd != null) {
+				return sd.getType();
+			}
+		}
+		return theStatedType;
+	}
+}
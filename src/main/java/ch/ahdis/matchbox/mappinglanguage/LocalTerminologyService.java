@@ -0,0 +1,250 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.context.IWorkerContext.ValidationResult;
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r5.model.Enumerations.CodeSystemContentMode;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.terminologies.ValueSetExpander.TerminologyServiceErrorClass;
+import org.hl7.fhir.r5.terminologies.ValueSetExpander.ValueSetExpansionOutcome;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers code membership and expansion requests from the installed ValueSets and CodeSystems, without a
+ * terminology server. The membership of a ValueSet (its expansion if present, otherwise the evaluated compose with
+ * enumerated concepts, complete CodeSystems and imported ValueSets) is computed on first use and kept as hash sets
+ * per system, so later checks are lookups.
+ * <p>
+ * Filters and CodeSystems that are not installed or not complete can not be evaluated locally; such ValueSets are
+ * marked incomplete, a code that is not found is then reported as unknown instead of invalid. If an exclude can not be
+ * evaluated, the included codes of its system (of all systems, for an exclude of ValueSets only) are reported as
+ * unknown too, they may be excluded.
+ * <p>
+ * The memberships are built lazily, not precomputed for all installed ValueSets: the terminology packages install
+ * thousands of ValueSets, most of which no map or validation ever uses, and expanding them all would be paid again on
+ * every install. The first check against a ValueSet after startup or after an install builds its membership (and the
+ * ones of the ValueSets it imports); {@link #clear} drops them all after resources have been installed, since any
+ * installed ValueSet or CodeSystem may change them.
+ */
+public class LocalTerminologyService {
+
+	private final IWorkerContext myContext;
+	// url|version -> membership, replaced by clear so that memberships built from the old resources are not put back
+	private volatile Map<String, Membership> myMemberships = new ConcurrentHashMap<>();
+
+	public LocalTerminologyService(IWorkerContext theContext) {
+		myContext = theContext;
+	}
+
+	public ValidationResult validateCode(String theSystem, String theCode, ValueSet theValueSet) {
+		if (theValueSet == null) {
+			return new ValidationResult(IssueSeverity.ERROR, "No ValueSet to validate the code " + theCode + " against");
+		}
+		Membership membership = getMembership(theValueSet);
+		String system = theSystem != null ? theSystem : membership.findSystem(theCode);
+		if (system != null) {
+			Map<String, String> codes = membership.myCodes.get(system);
+			if (codes != null && codes.containsKey(theCode)) {
+				if (membership.mayBeExcluded(system)) {
+					return new ValidationResult(IssueSeverity.WARNING, "The code " + system + "#" + theCode + " may be excluded from the ValueSet " + theValueSet.getUrl() + " (an exclude could not be evaluated locally)", TerminologyServiceErrorClass.VALUESET_UNSUPPORTED);
+				}
+				return new ValidationResult(system, new ConceptDefinitionComponent().setCode(theCode).setDisplay(codes.get(theCode)));
+			}
+		}
+		String message = "The code " + (theSystem != null ? theSystem + "#" : "") + theCode + " is not in the ValueSet " + theValueSet.getUrl();
+		if (!membership.myComplete) {
+			return new ValidationResult(IssueSeverity.WARNING, message + " (the ValueSet could not be fully expanded locally)", TerminologyServiceErrorClass.VALUESET_UNSUPPORTED);
+		}
+		return new ValidationResult(IssueSeverity.ERROR, message);
+	}
+
+	public ValueSetExpansionOutcome expand(ValueSet theValueSet, boolean theIncompleteOk) {
+		Membership membership = getMembership(theValueSet);
+		if ((!membership.myComplete || membership.hasUncertainExcludes()) && !theIncompleteOk) {
+			return new ValueSetExpansionOutcome("The ValueSet " + theValueSet.getUrl() + " could not be fully expanded locally", TerminologyServiceErrorClass.VALUESET_UNSUPPORTED);
+		}
+		ValueSet retVal = theValueSet.copy();
+		ValueSet.ValueSetExpansionComponent expansion = retVal.getExpansion();
+		expansion.getContains().clear();
+		expansion.setTimestamp(new Date());
+		int total = 0;
+		for (Map.Entry<String, Map<String, String>> system : membership.myCodes.entrySet()) {
+			for (Map.Entry<String, String> code : system.getValue().entrySet()) {
+				expansion.addContains().setSystem(system.getKey()).setCode(code.getKey()).setDisplay(code.getValue());
+				total++;
+			}
+		}
+		expansion.setTotal(total);
+		return new ValueSetExpansionOutcome(retVal);
+	}
+
+	private Membership getMembership(ValueSet theValueSet) {
+		if (!theValueSet.hasUrl()) {
+			return build(theValueSet, new HashSet<>());
+		}
+		return myMemberships.computeIfAbsent(theValueSet.getUrl() + "|" + theValueSet.getVersion(), k -> build(theValueSet, new HashSet<>()));
+	}
+
+	/**
+	 * Drops the memberships, they are built again from the installed resources when they are used next.
+	 */
+	public void clear() {
+		myMemberships = new ConcurrentHashMap<>();
+	}
+
+	private Membership build(ValueSet theValueSet, Set<String> theVisiting) {
+		Membership retVal = new Membership();
+		if (theValueSet.hasExpansion() && theValueSet.getExpansion().hasContains()) {
+			addContains(retVal, theValueSet.getExpansion().getContains());
+			return retVal;
+		}
+		if (theValueSet.hasUrl() && !theVisiting.add(theValueSet.getUrl())) {
+			// circular import
+			retVal.myComplete = false;
+			return retVal;
+		}
+		for (ValueSet.ConceptSetComponent include : theValueSet.getCompose().getInclude()) {
+			retVal.addAll(evaluate(include, retVal, theVisiting));
+		}
+		for (ValueSet.ConceptSetComponent exclude : theValueSet.getCompose().getExclude()) {
+			// the codes that could be evaluated are removed, the others may remove any code of the system
+			Membership evaluated = new Membership();
+			retVal.removeAll(evaluate(exclude, evaluated, theVisiting));
+			if (!evaluated.myComplete || evaluated.hasUncertainExcludes()) {
+				if (exclude.hasSystem()) {
+					retVal.myUncertainSystems.add(exclude.getSystem());
+				} else {
+					retVal.myUncertainAll = true;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * @param theTarget marked incomplete if the set can not be evaluated locally
+	 */
+	private Membership evaluate(ValueSet.ConceptSetComponent theSet, Membership theTarget, Set<String> theVisiting) {
+		Membership retVal = null;
+		if (theSet.hasSystem()) {
+			retVal = new Membership();
+			Map<String, String> codes = retVal.codes(theSet.getSystem());
+			if (theSet.hasConcept()) {
+				for (ValueSet.ConceptReferenceComponent concept : theSet.getConcept()) {
+					codes.put(concept.getCode(), concept.getDisplay());
+				}
+			} else {
+				CodeSystem codeSystem = myContext.fetchResource(CodeSystem.class, theSet.hasVersion() ? theSet.getSystem() + "|" + theSet.getVersion() : theSet.getSystem());
+				if (codeSystem != null && codeSystem.getContent() == CodeSystemContentMode.COMPLETE) {
+					addConcepts(codes, codeSystem.getConcept());
+				} else {
+					theTarget.myComplete = false;
+				}
+			}
+			if (theSet.hasFilter()) {
+				// filters are not evaluated, the enumerated codes are kept
+				theTarget.myComplete = false;
+			}
+		}
+		for (CanonicalType valueSet : theSet.getValueSet()) {
+			ValueSet imported = myContext.fetchResource(ValueSet.class, valueSet.getValue());
+			Membership importedMembership;
+			if (imported == null) {
+				theTarget.myComplete = false;
+				importedMembership = new Membership();
+			} else {
+				importedMembership = build(imported, theVisiting);
+				theTarget.myComplete &= importedMembership.myComplete;
+				theTarget.myUncertainSystems.addAll(importedMembership.myUncertainSystems);
+				theTarget.myUncertainAll |= importedMembership.myUncertainAll;
+			}
+			retVal = retVal == null ? importedMembership : retVal.retainAll(importedMembership);
+		}
+		return retVal != null ? retVal : new Membership();
+	}
+
+	private static void addConcepts(Map<String, String> theCodes, List<ConceptDefinitionComponent> theConcepts) {
+		for (ConceptDefinitionComponent concept : theConcepts) {
+			theCodes.put(concept.getCode(), concept.getDisplay());
+			addConcepts(theCodes, concept.getConcept());
+		}
+	}
+
+	private static void addContains(Membership theMembership, List<ValueSet.ValueSetExpansionContainsComponent> theContains) {
+		for (ValueSet.ValueSetExpansionContainsComponent contains : theContains) {
+			if (contains.hasCode() && !contains.getAbstract()) {
+				theMembership.codes(contains.getSystem()).put(contains.getCode(), contains.getDisplay());
+			}
+			addContains(theMembership, contains.getContains());
+		}
+	}
+
+	private static class Membership {
+		// system -> code -> display
+		private final Map<String, Map<String, String>> myCodes = new LinkedHashMap<>();
+		private boolean myComplete = true;
+		// systems with an exclude that could not be evaluated, all systems if the exclude has ValueSets only
+		private final Set<String> myUncertainSystems = new HashSet<>();
+		private boolean myUncertainAll;
+
+		private Map<String, String> codes(String theSystem) {
+			return myCodes.computeIfAbsent(theSystem, s -> new LinkedHashMap<>());
+		}
+
+		private boolean hasUncertainExcludes() {
+			return myUncertainAll || !myUncertainSystems.isEmpty();
+		}
+
+		private boolean mayBeExcluded(String theSystem) {
+			return myUncertainAll || myUncertainSystems.contains(theSystem);
+		}
+
+		private String findSystem(String theCode) {
+			for (Map.Entry<String, Map<String, String>> next : myCodes.entrySet()) {
+				if (next.getValue().containsKey(theCode)) {
+					return next.getKey();
+				}
+			}
+			return null;
+		}
+
+		private void addAll(Membership theOther) {
+			theOther.myCodes.forEach((system, codes) -> codes(system).putAll(codes));
+		}
+
+		private void removeAll(Membership theOther) {
+			theOther.myCodes.forEach((system, codes) -> {
+				Map<String, String> existing = myCodes.get(system);
+				if (existing != null) {
+					existing.keySet().removeAll(codes.keySet());
+				}
+			});
+		}
+
+		private Membership retainAll(Membership theOther) {
+			Membership retVal = new Membership();
+			myCodes.forEach((system, codes) -> {
+				Map<String, String> other = theOther.myCodes.get(system);
+				if (other != null) {
+					Map<String, String> retained = retVal.codes(system);
+					codes.forEach((code, display) -> {
+						if (other.containsKey(code)) {
+							retained.put(code, display);
+						}
+					});
+				}
+			});
+			return retVal;
+		}
+	}
+}
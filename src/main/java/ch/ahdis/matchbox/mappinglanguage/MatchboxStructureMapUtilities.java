@@ -26,6 +26,10 @@ package ch.ahdis.matchbox.mappinglanguage;
  import org.hl7.fhir.r5.model.ConceptMap.SourceElementComponent;
  import org.hl7.fhir.r5.model.ConceptMap.TargetElementComponent;
  import org.hl7.fhir.r5.model.Enumerations.ConceptMapRelationship;
+ import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupComponent;
+ import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupRuleComponent;
+ import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupRuleTargetComponent;
+ import org.hl7.fhir.r5.model.StructureMap.StructureMapTransform;
  import org.hl7.fhir.r5.utils.structuremap.ITransformerServices;
  import org.hl7.fhir.r5.utils.structuremap.SourceElementComponentWrapper;
  import org.hl7.fhir.r5.utils.structuremap.StructureMapUtilities;
@@ -35,20 +39,80 @@ package ch.ahdis.matchbox.mappinglanguage;
  import java.util.ArrayList;
  import java.util.EnumSet;
  import java.util.List;
+ import java.util.UUID;
 
 /**
  * Class to overwrite translation method to fix certain problems with CDA2FHIR
  * mapping
+ * <p>
+ * The uuid() transform of the engine always uses {@link java.util.UUID#randomUUID()}; maps prepared with
+ * {@link #prepare} (the private copies the transformations run on) call translate instead, which takes the value from the {@link UuidGenerator} of the
+ * {@link TransformSupportServices}.
  */
 public class MatchboxStructureMapUtilities extends StructureMapUtilities {
 
+	public static final String SPECIAL_UUID = "http://matchbox.health/ConceptMap/special-uuid";
+
 	public MatchboxStructureMapUtilities(IWorkerContext worker, ITransformerServices services) {
 		super(worker, services);
 	}
 
+	/**
+	 * Transforms the source into the target with a new engine instance, on private copies of the map and its imports
+	 * (see {@link ConvertingWorkerContext#borrowCopies}), so that transformations of the same map can run in parallel.
+	 *
+	 * @param profiler records the groups and rules executed, may be null
+	 */
+	public static void transform(ConvertingWorkerContext worker, StructureMap map, Base source, Base target, UuidGenerator uuidGenerator, StructureMapProfiler profiler) throws FHIRException {
+		StructureMap copy = worker.borrowCopies(map);
+		StructureMapProfiler.Recording recording = null;
+		try {
+			TransformSupportServices services = new TransformSupportServices(worker, new ArrayList<Base>(), uuidGenerator);
+			recording = profiler != null ? profiler.start(copy) : null;
+			services.setRecording(recording);
+			worker.getGroupResolution(copy);
+			new MatchboxStructureMapUtilities(worker, services).transform(null, source, copy, target);
+		} finally {
+			if (recording != null)
+				recording.finish();
+			worker.returnCopies(map);
+		}
+	}
+
+	/**
+	 * Replaces the uuid() transforms of the rule targets by translate('uuid', SPECIAL_UUID, 'id'), in place; only
+	 * called on the private copies of {@link ConvertingWorkerContext#borrowCopies}, never on a shared converted map.
+	 */
+	public static StructureMap prepare(StructureMap map) {
+		for (StructureMapGroupComponent group : map.getGroup()) {
+			prepareRules(group.getRule());
+		}
+		return map;
+	}
+
+	private static void prepareRules(List<StructureMapGroupRuleComponent> rules) {
+		for (StructureMapGroupRuleComponent rule : rules) {
+			for (StructureMapGroupRuleTargetComponent tgt : rule.getTarget()) {
+				if (tgt.getTransform() == StructureMapTransform.UUID) {
+					tgt.setTransform(StructureMapTransform.TRANSLATE);
+					tgt.getParameter().clear();
+					tgt.addParameter().setValue(new StringType("uuid"));
+					tgt.addParameter().setValue(new StringType(SPECIAL_UUID));
+					tgt.addParameter().setValue(new StringType("id"));
+				}
+			}
+			prepareRules(rule.getRule());
+		}
+	}
+
 	@Override
 	public Base translate(TransformContext context, StructureMap map, Base source, String conceptMapUrl,
 			String fieldToReturn) throws FHIRException {
+		if (SPECIAL_UUID.equals(conceptMapUrl)) {
+			if (getServices() instanceof TransformSupportServices)
+				return new IdType(((TransformSupportServices) getServices()).newUuid());
+			return new IdType(UUID.randomUUID().toString());
+		}
 		Coding src = new Coding();
 		if (source.isPrimitive()) {
 			src.setCode(source.primitiveValue());
@@ -0,0 +1,148 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The target of the transformation of a part of a document by the {@link SectionedTransformer}, with the values the
+ * <code>uuid()</code> transforms generated for it. Only these values are masked and renamed, uuids copied from the
+ * source document are left as they are.
+ */
+public class PartialTarget {
+
+	private static final Pattern UUID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+	private static final String MASK = "*";
+
+	private final Element myTarget;
+	private final List<String> myUuids;
+	private final Set<String> myUuidSet;
+
+	public PartialTarget(Element theTarget, List<String> theUuids) {
+		myTarget = theTarget;
+		myUuids = theUuids;
+		myUuidSet = new HashSet<>(theUuids);
+	}
+
+	public Element getTarget() {
+		return myTarget;
+	}
+
+	/**
+	 * @return the generated uuids, in generation order
+	 */
+	public List<String> getUuids() {
+		return Collections.unmodifiableList(myUuids);
+	}
+
+	public PartialTarget copy() {
+		return new PartialTarget(ElementModelCopy.deepCopy(myTarget), new ArrayList<>(myUuids));
+	}
+
+	/**
+	 * @return the value with the generated uuids it contains replaced by a mask
+	 */
+	public String mask(String theValue) {
+		if (theValue == null || theValue.length() < 36) {
+			return theValue;
+		}
+		Matcher matcher = UUID.matcher(theValue);
+		StringBuilder retVal = null;
+		int last = 0;
+		while (matcher.find()) {
+			if (myUuidSet.contains(matcher.group())) {
+				if (retVal == null) {
+					retVal = new StringBuilder(theValue.length());
+				}
+				retVal.append(theValue, last, matcher.start()).append(MASK);
+				last = matcher.end();
+			}
+		}
+		return retVal != null ? retVal.append(theValue, last, theValue.length()).toString() : theValue;
+	}
+
+	/**
+	 * @return the generated uuids in the values of the element and its descendants, in document order, skipping the
+	 * elements matching theSkipped
+	 */
+	public List<String> occurrences(Element theElement, Predicate<Element> theSkipped) {
+		List<String> retVal = new ArrayList<>();
+		collect(theElement, theSkipped, retVal);
+		return retVal;
+	}
+
+	private void collect(Element theElement, Predicate<Element> theSkipped, List<String> theOccurrences) {
+		String value = theElement.getValue();
+		if (value != null && value.length() >= 36) {
+			Matcher matcher = UUID.matcher(value);
+			while (matcher.find()) {
+				if (myUuidSet.contains(matcher.group())) {
+					theOccurrences.add(matcher.group());
+				}
+			}
+		}
+		if (theElement.hasChildren()) {
+			for (Element child : theElement.getChildren()) {
+				if (!theSkipped.test(child)) {
+					collect(child, theSkipped, theOccurrences);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the generated uuids of the target by <code>uuid-1</code>, <code>uuid-2</code>, ... in the order of
+	 * their first occurrence, so that targets generated with different uuids can be compared.
+	 */
+	public void normalize() {
+		Map<String, String> renamed = new LinkedHashMap<>();
+		for (String next : occurrences(myTarget, e -> false)) {
+			renamed.putIfAbsent(next, "uuid-" + (renamed.size() + 1));
+		}
+		rename(myTarget, renamed);
+	}
+
+	/**
+	 * Replaces the uuids in the values of the element and its descendants.
+	 *
+	 * @param theRenamed old uuid -> new uuid
+	 */
+	public static void rename(Element theElement, Map<String, String> theRenamed) {
+		if (theRenamed.isEmpty()) {
+			return;
+		}
+		String value = theElement.getValue();
+		if (value != null && value.length() >= 36) {
+			Matcher matcher = UUID.matcher(value);
+			StringBuilder renamed = null;
+			int last = 0;
+			while (matcher.find()) {
+				String replacement = theRenamed.get(matcher.group());
+				if (replacement != null) {
+					if (renamed == null) {
+						renamed = new StringBuilder(value.length());
+					}
+					renamed.append(value, last, matcher.start()).append(replacement);
+					last = matcher.end();
+				}
+			}
+			if (renamed != null) {
+				theElement.setValue(renamed.append(value, last, value.length()).toString());
+			}
+		}
+		if (theElement.hasChildren()) {
+			for (Element child : theElement.getChildren()) {
+				rename(child, theRenamed);
+			}
+		}
+	}
+}
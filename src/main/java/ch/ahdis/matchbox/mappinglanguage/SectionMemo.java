@@ -0,0 +1,112 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.StructureMap;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Memoizes the partial targets of the {@link SectionedTransformer}. A partial target is identified by the map
+ * (url and version), the fingerprint of the document without its sections and the fingerprint of the section, so a
+ * re-submitted document with one changed section only transforms that section again.
+ * <p>
+ * The memo holds private copies, callers get a new copy on every hit since the merged target is modified afterwards.
+ * The key of the part of the document without sections uses an empty section fingerprint.
+ * <p>
+ * The partial targets also depend on the imported maps and the ConceptMaps, which may change without a new map
+ * version: {@link #invalidateAll} is called after resources are installed.
+ */
+public class SectionMemo {
+
+	private final Cache<String, PartialTarget> myCache;
+	// part of the keys, so that targets of transformations running during an install are not found afterwards
+	private final AtomicLong myGeneration = new AtomicLong();
+
+	public SectionMemo(long theMaximumSize, Duration theExpireAfterAccess) {
+		Caffeine<Object, Object> builder = Caffeine.newBuilder().maximumSize(theMaximumSize);
+		if (theExpireAfterAccess != null) {
+			builder.expireAfterAccess(theExpireAfterAccess);
+		}
+		myCache = builder.build();
+	}
+
+	public String key(StructureMap theMap, String theSkeletonFingerprint, String theSectionFingerprint) {
+		return myGeneration.get() + "|" + theMap.getUrl() + "|" + theMap.getVersion() + "|" + theSkeletonFingerprint + "|" + theSectionFingerprint;
+	}
+
+	/**
+	 * @return a copy of the memoized partial target or null
+	 */
+	public PartialTarget get(String theKey) {
+		PartialTarget retVal = myCache.getIfPresent(theKey);
+		return retVal != null ? retVal.copy() : null;
+	}
+
+	public void put(String theKey, PartialTarget thePartialTarget) {
+		myCache.put(theKey, thePartialTarget.copy());
+	}
+
+	/**
+	 * Drops all partial targets, the keys made before are not used again.
+	 */
+	public void invalidateAll() {
+		myGeneration.incrementAndGet();
+		myCache.invalidateAll();
+	}
+
+	/**
+	 * SHA-256 over the names, types and values of the element and its descendants in document order.
+	 */
+	public static String fingerprint(Element theElement) {
+		return fingerprint(theElement, UnaryOperator.identity(), e -> false);
+	}
+
+	/**
+	 * Same as {@link #fingerprint(Element)}, with the values passed through theValues and without the elements
+	 * matching theSkipped (and their descendants).
+	 */
+	public static String fingerprint(Element theElement, UnaryOperator<String> theValues, Predicate<Element> theSkipped) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(digest, theElement, theValues, theSkipped);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+	}
+
+	private static void update(MessageDigest theDigest, Element theElement, UnaryOperator<String> theValues, Predicate<Element> theSkipped) {
+		update(theDigest, theElement.getName());
+		update(theDigest, theElement.getType());
+		update(theDigest, theValues.apply(theElement.getValue()));
+		if (theElement.hasChildren()) {
+			theDigest.update((byte) '(');
+			for (Element child : theElement.getChildren()) {
+				if (!theSkipped.test(child)) {
+					update(theDigest, child, theValues, theSkipped);
+				}
+			}
+			theDigest.update((byte) ')');
+		}
+	}
+
+	private static void update(MessageDigest theDigest, String theValue) {
+		if (theValue != null) {
+			theDigest.update(theValue.getBytes(StandardCharsets.UTF_8));
+		} else {
+			theDigest.update((byte) 1);
+		}
+		// separator, so that adjacent values can not shift into each other
+		theDigest.update((byte) 0);
+	}
+}
@@ -0,0 +1,76 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes how the source documents of a StructureMap can be split into independent sections that are
+ * transformed in parallel by the {@link SectionedTransformer}. Configured under
+ * <code>matchbox.transform.split</code>, e.g. for a CDA document:
+ * <pre>
+ * matchbox:
+ *   transform:
+ *     split:
+ *       - map-url: http://fhir.ch/ig/cda-fhir-maps/StructureMap/CdaChEmedMedicationTreatmentPlanDocumentToBundle
+ *         source-path: component.structuredBody.component
+ *         merge-paths: entry
+ *         verification-document: ./examples/MTP_01_valid.xml
+ * </pre>
+ */
+public class SectionSplitConfig {
+
+	private String mapUrl;
+	private String sourcePath;
+	private List<String> mergePaths = new ArrayList<>();
+	private File verificationDocument;
+
+	/**
+	 * @return canonical url of the map the configuration applies to
+	 */
+	public String getMapUrl() {
+		return mapUrl;
+	}
+
+	public void setMapUrl(String mapUrl) {
+		this.mapUrl = mapUrl;
+	}
+
+	/**
+	 * @return dotted path of element names from the source root to the repeating section element; all elements
+	 * before the last one are expected to occur once
+	 */
+	public String getSourcePath() {
+		return sourcePath;
+	}
+
+	public void setSourcePath(String sourcePath) {
+		this.sourcePath = sourcePath;
+	}
+
+	/**
+	 * @return dotted paths in the target whose last element is collected from all partial results, e.g.
+	 * <code>entry</code> for the entries of a Bundle. All other target content is taken from the transformation of
+	 * the document without its sections.
+	 */
+	public List<String> getMergePaths() {
+		return mergePaths;
+	}
+
+	public void setMergePaths(List<String> mergePaths) {
+		this.mergePaths = mergePaths;
+	}
+
+	/**
+	 * @return a source document of the map (<code>.xml</code> or json) with at least one section; the split is only
+	 * enabled if its sectioned transformation equals the transformation of the whole document, see
+	 * {@link SectionedTransformer#verifyConfigs}
+	 */
+	public File getVerificationDocument() {
+		return verificationDocument;
+	}
+
+	public void setVerificationDocument(File verificationDocument) {
+		this.verificationDocument = verificationDocument;
+	}
+}
@@ -0,0 +1,446 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Transforms documents whose repeating sections (e.g. the sections of a CDA document) can be mapped independently:
+ * the document without its sections and, for every section, a source that shares everything with the original
+ * document except the other sections are transformed in parallel, and the partial targets are merged in section
+ * order.
+ * <p>
+ * The merge starts from the target of the document without sections (the header resources, e.g. the Composition and
+ * the Patient) and appends the elements of the configured merge paths of the section targets. Elements that are equal
+ * to one of the header target, up to the values of the <code>uuid()</code> transforms, are the header resources
+ * created again for the section: they are dropped and their uuids are renamed to the ones of the header in the rest of
+ * the section target. For documents (a Bundle starting with a Composition) the <code>section</code> elements of the
+ * Compositions of the section targets are appended to the Composition of the header. The section rules must
+ * therefore not modify the header resources other than by adding Composition sections.
+ * <p>
+ * Since a wrong merge gives a wrong target without an error, a configured split is only enabled once
+ * {@link #verifyConfigs} has compared the sectioned transformation of its verification document with the
+ * transformation of the whole document. Until then, and if the verification fails or the document can not be read,
+ * the documents of the map are transformed as a whole.
+ * <p>
+ * The parts running in parallel do not share source elements: each gets its own copy of the document without sections
+ * and the one section it transforms, so that FHIRPath and the engine may keep user data on the source elements.
+ * <p>
+ * With a {@link SectionMemo} the partial targets of unchanged sections are reused when a document is transformed
+ * again, only the new or changed sections are mapped. The generated uuids of a reused target are replaced by new ones.
+ */
+public class SectionedTransformer {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(SectionedTransformer.class);
+
+	private final List<SectionSplitConfig> myConfigs;
+	// map url -> verified configuration
+	private final Map<String, SectionSplitConfig> myEnabledConfigs = new ConcurrentHashMap<>();
+	private final ExecutorService myExecutor;
+	private final SectionMemo myMemo;
+	private final UuidGenerator.Factory myUuidGenerators;
+	private final StructureMapProfiler myProfiler;
+	// maps whose first document has been transformed, the worker context caches are filled for them
+	private final Set<String> myWarmedMaps = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param theMemo memo for the partial targets, null to transform every section
+	 * @param theUuidGenerators creates the uuid generator of each section
+	 * @param theProfiler profiler of the section transformations, null if not profiled
+	 */
+	public SectionedTransformer(List<SectionSplitConfig> theConfigs, int theThreads, SectionMemo theMemo, UuidGenerator.Factory theUuidGenerators, StructureMapProfiler theProfiler) {
+		myMemo = theMemo;
+		myUuidGenerators = theUuidGenerators;
+		myProfiler = theProfiler;
+		for (SectionSplitConfig next : theConfigs) {
+			if (next.getVerificationDocument() == null) {
+				throw new IllegalArgumentException("The split of " + next.getMapUrl() + " has no verification-document");
+			}
+		}
+		myConfigs = new ArrayList<>(theConfigs);
+		myExecutor = Executors.newFixedThreadPool(theThreads > 0 ? theThreads : Runtime.getRuntime().availableProcessors(), r -> {
+			Thread thread = new Thread(r, "matchbox-section-transform");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@PreDestroy
+	public void close() {
+		myExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return true if the split of the map is configured and verified
+	 */
+	public boolean supports(StructureMap theMap) {
+		return myEnabledConfigs.containsKey(theMap.getUrl());
+	}
+
+	/**
+	 * Transforms the source section by section. Falls back to a single transformation if the source has less than
+	 * two sections.
+	 *
+	 * @param theTargetFactory creates an empty target for every section
+	 * @return the merged target
+	 */
+	public Element transform(ConvertingWorkerContext theContext, StructureMap theMap, Element theSource, Supplier<Element> theTargetFactory) throws FHIRException {
+		SectionSplitConfig config = myEnabledConfigs.get(theMap.getUrl());
+		if (config == null || findSections(theSource, config.getSourcePath().split("\\.")).size() < 2) {
+			return transformPart(theContext, theMap, theSource, theTargetFactory, -1).getTarget();
+		}
+		return transformSections(theContext, theMap, theSource, theTargetFactory, config, myMemo).getTarget();
+	}
+
+	/**
+	 * Verifies every configured split with its verification document and enables the ones that pass. A split whose
+	 * map is not installed, or whose document is missing or can not be parsed, is not enabled.
+	 *
+	 * @param theParser parses a verification document
+	 * @param theTargetFactory creates an empty target of the map
+	 */
+	public void verifyConfigs(ConvertingWorkerContext theContext, DocumentParser theParser, Function<StructureMap, Element> theTargetFactory) {
+		for (SectionSplitConfig config : myConfigs) {
+			myEnabledConfigs.remove(config.getMapUrl());
+			StructureMap map = theContext.getTransform(config.getMapUrl());
+			if (map == null) {
+				ourLog.error("The split of {} is not enabled, the map is not installed", config.getMapUrl());
+				continue;
+			}
+			File document = config.getVerificationDocument();
+			Element source;
+			try (InputStream is = new FileInputStream(document)) {
+				source = theParser.parse(is, document.getName().endsWith(".xml") ? Manager.FhirFormat.XML : Manager.FhirFormat.JSON);
+			} catch (IOException | FHIRException e) {
+				ourLog.error("The split of {} is not enabled, the verification document {} can not be read: {}", config.getMapUrl(), document, e.getMessage());
+				continue;
+			}
+			try {
+				if (verify(theContext, map, source, () -> theTargetFactory.apply(map), config)) {
+					myEnabledConfigs.put(config.getMapUrl(), config);
+				}
+			} catch (FHIRException e) {
+				ourLog.error("The split of {} is not enabled, the verification with {} failed: {}", config.getMapUrl(), document, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Checks that the sectioned transformation of the document gives the same target as the transformation of the
+	 * whole document, up to the values of the <code>uuid()</code> transforms. A document with one section is checked
+	 * with the section repeated.
+	 *
+	 * @return true if the targets are equal
+	 */
+	private boolean verify(ConvertingWorkerContext theContext, StructureMap theMap, Element theSource, Supplier<Element> theTargetFactory, SectionSplitConfig theConfig) throws FHIRException {
+		String[] sourcePath = theConfig.getSourcePath().split("\\.");
+		Element source = theSource;
+		if (findSections(source, sourcePath).size() == 1) {
+			source = withRepeatedSection(source, sourcePath, 0);
+		}
+		int sections = findSections(source, sourcePath).size();
+		if (sections < 2) {
+			ourLog.error("The split of {} is not enabled, the verification document has no {}", theMap.getUrl(), theConfig.getSourcePath());
+			return false;
+		}
+
+		PartialTarget serial = transformPart(theContext, theMap, source, theTargetFactory, -1);
+		PartialTarget sectioned = transformSections(theContext, theMap, source, theTargetFactory, theConfig, null);
+		for (PartialTarget next : new PartialTarget[]{serial, sectioned}) {
+			ElementModelSorter.sort(next.getTarget());
+			next.normalize();
+		}
+		if (SectionMemo.fingerprint(serial.getTarget()).equals(SectionMemo.fingerprint(sectioned.getTarget()))) {
+			ourLog.info("Sectioned transformation of {} verified with {} sections", theMap.getUrl(), sections);
+			return true;
+		}
+		ourLog.error("The split of {} is not enabled, the sectioned transformation differs from the transformation of the whole document", theMap.getUrl());
+		return false;
+	}
+
+	/**
+	 * Part 0 is the document without sections, part i the document with only its section i - 1.
+	 */
+	private PartialTarget transformSections(ConvertingWorkerContext theContext, StructureMap theMap, Element theSource, Supplier<Element> theTargetFactory, SectionSplitConfig theConfig, SectionMemo theMemo) throws FHIRException {
+		String[] sourcePath = theConfig.getSourcePath().split("\\.");
+		List<Element> sections = findSections(theSource, sourcePath);
+
+		PartialTarget[] partials = new PartialTarget[sections.size() + 1];
+		String[] keys = new String[partials.length];
+		if (theMemo != null) {
+			String skeleton = SectionMemo.fingerprint(withSingleSection(theSource, sourcePath, 0, -1));
+			for (int i = 0; i < partials.length; i++) {
+				keys[i] = theMemo.key(theMap, skeleton, i == 0 ? "" : SectionMemo.fingerprint(sections.get(i - 1)));
+				PartialTarget memoized = theMemo.get(keys[i]);
+				partials[i] = memoized != null ? withNewUuids(memoized, i - 1) : null;
+			}
+		}
+		List<Integer> missing = new ArrayList<>(partials.length);
+		for (int i = 0; i < partials.length; i++) {
+			if (partials[i] == null) {
+				missing.add(i);
+			}
+		}
+		ourLog.debug("Transforming {} of {} parts of {} with map {}", missing.size(), partials.length, theConfig.getSourcePath(), theMap.getUrl());
+
+		int first = 0;
+		if (!missing.isEmpty() && myWarmedMaps.add(theMap.getUrl())) {
+			// the first part is transformed alone, so that the shared caches are filled before going parallel
+			int part = missing.get(0);
+			partials[part] = transformPart(theContext, theMap, withSingleSection(theSource, sourcePath, 0, part - 1), theTargetFactory, part - 1);
+			first = 1;
+		}
+
+		List<Future<PartialTarget>> futures = new ArrayList<>(missing.size());
+		for (int i = first; i < missing.size(); i++) {
+			int part = missing.get(i);
+			futures.add(myExecutor.submit(() -> transformPart(theContext, theMap, withSingleSection(theSource, sourcePath, 0, part - 1), theTargetFactory, part - 1)));
+		}
+		try {
+			for (int i = first; i < missing.size(); i++) {
+				partials[missing.get(i)] = futures.get(i - first).get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FHIRException("Interrupted while transforming the sections of " + theConfig.getSourcePath(), e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof FHIRException) {
+				throw (FHIRException) e.getCause();
+			}
+			throw new FHIRException("Error transforming a section of " + theConfig.getSourcePath() + ": " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			futures.forEach(f -> f.cancel(true));
+		}
+		if (theMemo != null) {
+			// before merging, the merge moves and renames elements of the partial targets
+			for (int part : missing) {
+				theMemo.put(keys[part], partials[part]);
+			}
+		}
+		return merge(theConfig, partials);
+	}
+
+	/**
+	 * @param theSection the section of the source, -1 for the whole document or the document without sections
+	 */
+	private PartialTarget transformPart(ConvertingWorkerContext theContext, StructureMap theMap, Element theSource, Supplier<Element> theTargetFactory, int theSection) throws FHIRException {
+		Element target = theTargetFactory.get();
+		UuidGenerator generator = myUuidGenerators.create(theSection);
+		List<String> uuids = new ArrayList<>();
+		MatchboxStructureMapUtilities.transform(theContext, theMap, theSource, target, () -> {
+			String uuid = generator.newUuid();
+			uuids.add(uuid);
+			return uuid;
+		}, myProfiler);
+		return new PartialTarget(target, uuids);
+	}
+
+	/**
+	 * Replaces the uuids generated when the memoized target was transformed by new ones, in the order they were
+	 * generated, so that documents transformed again get the uuids a transformation would give them.
+	 */
+	private PartialTarget withNewUuids(PartialTarget theMemoized, int theSection) {
+		UuidGenerator generator = myUuidGenerators.create(theSection);
+		Map<String, String> renamed = new HashMap<>();
+		List<String> uuids = new ArrayList<>(theMemoized.getUuids().size());
+		for (String next : theMemoized.getUuids()) {
+			String uuid = generator.newUuid();
+			renamed.put(next, uuid);
+			uuids.add(uuid);
+		}
+		PartialTarget.rename(theMemoized.getTarget(), renamed);
+		return new PartialTarget(theMemoized.getTarget(), uuids);
+	}
+
+	/**
+	 * Merges the section targets (parts 1..n) into the target of the document without sections (part 0).
+	 */
+	private static PartialTarget merge(SectionSplitConfig theConfig, PartialTarget[] theParts) {
+		PartialTarget header = theParts[0];
+		Element retVal = header.getTarget();
+		List<String> uuids = new ArrayList<>(header.getUuids());
+		Element composition = documentComposition(retVal);
+		List<String[]> paths = new ArrayList<>();
+		for (String mergePath : theConfig.getMergePaths()) {
+			paths.add(mergePath.split("\\."));
+		}
+
+		// per merge path: masked fingerprint -> elements of the header target
+		List<Map<String, List<Element>>> headerElements = new ArrayList<>();
+		for (String[] path : paths) {
+			Map<String, List<Element>> byFingerprint = new HashMap<>();
+			for (Element next : childrenAt(retVal, path)) {
+				byFingerprint.computeIfAbsent(maskedFingerprint(header, next, composition), f -> new ArrayList<>()).add(next);
+			}
+			headerElements.add(byFingerprint);
+		}
+
+		for (int i = 1; i < theParts.length; i++) {
+			PartialTarget part = theParts[i];
+			Element partComposition = documentComposition(part.getTarget());
+			Predicate<Element> sections = e -> isSectionOf(e, partComposition);
+			// uuid of the part -> uuid of the header resource it duplicates
+			Map<String, String> renamed = new HashMap<>();
+			List<List<Element>> appended = new ArrayList<>();
+			for (int p = 0; p < paths.size(); p++) {
+				Map<String, Integer> matched = new HashMap<>();
+				List<Element> elements = new ArrayList<>();
+				for (Element next : childrenAt(part.getTarget(), paths.get(p))) {
+					String fingerprint = maskedFingerprint(part, next, partComposition);
+					List<Element> candidates = headerElements.get(p).get(fingerprint);
+					int index = matched.getOrDefault(fingerprint, 0);
+					if (candidates != null && index < candidates.size()) {
+						matched.put(fingerprint, index + 1);
+						List<String> partUuids = part.occurrences(next, sections);
+						List<String> headerUuids = header.occurrences(candidates.get(index), e -> isSectionOf(e, composition));
+						for (int u = 0; u < partUuids.size() && u < headerUuids.size(); u++) {
+							renamed.putIfAbsent(partUuids.get(u), headerUuids.get(u));
+						}
+					} else {
+						elements.add(next);
+					}
+				}
+				appended.add(elements);
+			}
+
+			if (composition != null && partComposition != null) {
+				for (Element section : partComposition.getChildrenByName("section")) {
+					PartialTarget.rename(section, renamed);
+					composition.getChildren().add(section);
+				}
+			}
+			for (int p = 0; p < paths.size(); p++) {
+				Element parent = parentAt(retVal, paths.get(p));
+				if (parent == null) {
+					continue;
+				}
+				for (Element next : appended.get(p)) {
+					PartialTarget.rename(next, renamed);
+					parent.getChildren().add(next);
+				}
+			}
+			for (String next : part.getUuids()) {
+				if (!renamed.containsKey(next)) {
+					uuids.add(next);
+				}
+			}
+		}
+		return new PartialTarget(retVal, uuids);
+	}
+
+	private static String maskedFingerprint(PartialTarget thePart, Element theElement, Element theComposition) {
+		return SectionMemo.fingerprint(theElement, thePart::mask, e -> isSectionOf(e, theComposition));
+	}
+
+	/**
+	 * @return the Composition of a document Bundle (resource of its first entry), else null
+	 */
+	private static Element documentComposition(Element theTarget) {
+		if (!"Bundle".equals(theTarget.getType())) {
+			return null;
+		}
+		Element entry = theTarget.getNamedChild("entry");
+		Element resource = entry != null ? entry.getNamedChild("resource") : null;
+		return resource != null && "Composition".equals(resource.getType()) ? resource : null;
+	}
+
+	private static boolean isSectionOf(Element theElement, Element theComposition) {
+		return theComposition != null && "section".equals(theElement.getName()) && theComposition.getChildren().contains(theElement);
+	}
+
+	private static Element parentAt(Element theTarget, String[] thePath) {
+		Element retVal = theTarget;
+		for (int i = 0; i < thePath.length - 1 && retVal != null; i++) {
+			retVal = retVal.getNamedChild(thePath[i]);
+		}
+		return retVal;
+	}
+
+	private static List<Element> childrenAt(Element theTarget, String[] thePath) {
+		Element parent = parentAt(theTarget, thePath);
+		return parent != null ? parent.getChildrenByName(thePath[thePath.length - 1]) : new ArrayList<>();
+	}
+
+	private static List<Element> findSections(Element theSource, String[] thePath) {
+		return childrenAt(theSource, thePath);
+	}
+
+	/**
+	 * Copies the document without its sections, the container of the sections only keeps the requested section, none
+	 * for a negative section. The section is not copied, it is transformed by one part only; the rest of the document
+	 * is, since all parts transform it.
+	 */
+	private static Element withSingleSection(Element theElement, String[] thePath, int theDepth, int theSection) {
+		Element retVal = ElementModelCopy.shallowCopy(theElement);
+		String name = thePath[theDepth];
+		boolean last = theDepth == thePath.length - 1;
+		int seen = 0;
+		boolean descended = false;
+		for (Element child : theElement.getChildren()) {
+			if (!name.equals(child.getName())) {
+				retVal.getChildren().add(ElementModelCopy.deepCopy(child));
+			} else if (last) {
+				if (seen++ == theSection) {
+					retVal.getChildren().add(child);
+				}
+			} else if (!descended) {
+				retVal.getChildren().add(withSingleSection(child, thePath, theDepth + 1, theSection));
+				descended = true;
+			} else {
+				retVal.getChildren().add(ElementModelCopy.deepCopy(child));
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Copies the elements along the path, the container of the sections gets a copy of each section after it.
+	 */
+	private static Element withRepeatedSection(Element theElement, String[] thePath, int theDepth) {
+		Element retVal = ElementModelCopy.shallowCopy(theElement);
+		String name = thePath[theDepth];
+		boolean last = theDepth == thePath.length - 1;
+		boolean descended = false;
+		for (Element child : theElement.getChildren()) {
+			if (!name.equals(child.getName())) {
+				retVal.getChildren().add(child);
+			} else if (last) {
+				retVal.getChildren().add(child);
+				retVal.getChildren().add(ElementModelCopy.deepCopy(child));
+			} else if (!descended) {
+				retVal.getChildren().add(withRepeatedSection(child, thePath, theDepth + 1));
+				descended = true;
+			} else {
+				retVal.getChildren().add(child);
+			}
+		}
+		return retVal;
+	}
+
+	@FunctionalInterface
+	public interface DocumentParser {
+		Element parse(InputStream theStream, Manager.FhirFormat theFormat) throws IOException;
+	}
+}
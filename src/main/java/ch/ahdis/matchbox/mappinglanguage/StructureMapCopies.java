@@ -0,0 +1,38 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import org.hl7.fhir.r5.model.StructureMap;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Private copies of a StructureMap and of the maps it imports, used by one transformation at a time, see
+ * {@link ConvertingWorkerContext#borrowCopies}. The copies keep the groups resolved and the expressions parsed by
+ * the engine for the next transformation of the map. The copies are prepared for the {@link UuidGenerator} (see
+ * {@link MatchboxStructureMapUtilities#prepare}), the shared converted maps keep their uuid() transforms. Not thread
+ * safe.
+ */
+class StructureMapCopies {
+
+	// converted map instance -> copy
+	private final Map<StructureMap, StructureMap> myCopies = new IdentityHashMap<>();
+
+	StructureMap get(StructureMap theMap) {
+		return myCopies.computeIfAbsent(theMap, m -> MatchboxStructureMapUtilities.prepare(m.copy()));
+	}
+
+	/**
+	 * @param theCurrent url -> the current converted map
+	 * @return false if a map has been converted again since it was copied, the resolved groups of the copies may
+	 * point to the copy of the old version
+	 */
+	boolean isCopyOfCurrent(Function<String, StructureMap> theCurrent) {
+		for (StructureMap next : myCopies.keySet()) {
+			if (next.hasUrl() && theCurrent.apply(next.getUrl()) != next) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,233 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import org.hl7.fhir.r5.model.StructureMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Records invocation counts, time and allocated bytes of the groups and rules executed by the StructureMap engine.
+ * <p>
+ * The engine logs a line through {@link TransformSupportServices#log} when it enters a group or a rule, indented by
+ * the nesting depth; a {@link Recording} turns these lines into a call stack. A frame ends when the next group or
+ * rule at the same or a lower depth starts, or when the transformation ends. Groups are labelled with the url of the
+ * map defining them ({@link GroupResolutionTable#getOwnerUrl}), <code>url#group</code>, rules with their name.
+ * <p>
+ * The times and allocations are self values (without the nested frames), aggregated per stack over all recorded
+ * transformations and written in the folded stack format of flame graph tools, one line
+ * <code>root map;url#group;rule;... value</code> per stack. Without a profiler the services only log at debug
+ * level, as before.
+ * <p>
+ * The attribution is approximate. The frames are derived from the wording and indentation of the engine's log lines
+ * (FHIR core 5.6.43), and the engine logs nothing when a dependent group returns: the work a rule does after its
+ * dependent group returned (the remaining targets, the next source element) is charged to the group's frame until the
+ * next group or rule at a lower depth starts. The self values show where a transformation spends its time by group,
+ * they are not exact self times of the rules. A recording without any frame is logged as a warning, the engine's log
+ * wording has then most likely changed.
+ */
+public class StructureMapProfiler {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(StructureMapProfiler.class);
+
+	private static final String GROUP = "Group : ";
+	private static final String RULE = "rule : ";
+
+	// folded stack -> statistics
+	private final Map<String, Statistics> myStacks = new ConcurrentHashMap<>();
+	private final ConvertingWorkerContext myContext;
+	private final File myOutput;
+	private final com.sun.management.ThreadMXBean myAllocations;
+
+	/**
+	 * @param theOutput the report written when the application shuts down, null for none
+	 */
+	public StructureMapProfiler(ConvertingWorkerContext theContext, File theOutput) {
+		myContext = theContext;
+		myOutput = theOutput;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		myAllocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+	}
+
+	/**
+	 * @return the recording of one transformation, to be used by one thread
+	 */
+	public Recording start(StructureMap theMap) {
+		return new Recording(theMap);
+	}
+
+	public void reset() {
+		myStacks.clear();
+	}
+
+	@PreDestroy
+	public void writeReport() throws IOException {
+		if (myOutput != null && !myStacks.isEmpty()) {
+			writeReport(myOutput);
+		}
+	}
+
+	/**
+	 * Writes the folded stacks with the self time in microseconds to <code>theOutput.time.folded</code> and the
+	 * self allocations in bytes to <code>theOutput.alloc.folded</code>, and logs the most expensive frames.
+	 */
+	public void writeReport(File theOutput) throws IOException {
+		Map<String, Statistics> stacks = new HashMap<>(myStacks);
+		write(new File(theOutput.getPath() + ".time.folded"), stacks, s -> s.mySelfNanos.sum() / 1000);
+		if (myAllocations != null) {
+			write(new File(theOutput.getPath() + ".alloc.folded"), stacks, s -> s.mySelfBytes.sum());
+		}
+
+		// per frame (last element of the stack), recursive frames are counted once per stack
+		Map<String, long[]> frames = new HashMap<>();
+		stacks.forEach((stack, statistics) -> {
+			long[] values = frames.computeIfAbsent(frameOf(stack), f -> new long[3]);
+			values[0] += statistics.myCount.sum();
+			values[1] += statistics.mySelfNanos.sum();
+			values[2] += statistics.mySelfBytes.sum();
+		});
+		List<Map.Entry<String, long[]>> sorted = new ArrayList<>(frames.entrySet());
+		sorted.sort((o1, o2) -> Long.compare(o2.getValue()[1], o1.getValue()[1]));
+		StringBuilder b = new StringBuilder();
+		for (Map.Entry<String, long[]> next : sorted.subList(0, Math.min(20, sorted.size()))) {
+			long[] values = next.getValue();
+			b.append(String.format("%n  %8d x %10.2f ms %10d kB  %s", values[0], values[1] / 1e6, values[2] / 1024, next.getKey()));
+		}
+		ourLog.info("StructureMap profile written to {}.*.folded, frames with the highest self time:{}", theOutput, b);
+	}
+
+	private static void write(File theFile, Map<String, Statistics> theStacks, ToLongFunction<Statistics> theValue) throws IOException {
+		if (theFile.getParentFile() != null) {
+			theFile.getParentFile().mkdirs();
+		}
+		try (PrintWriter writer = new PrintWriter(theFile, StandardCharsets.UTF_8)) {
+			theStacks.forEach((stack, statistics) -> writer.println(stack + " " + theValue.applyAsLong(statistics)));
+		}
+	}
+
+	/**
+	 * @return url#group for groups, url#group/rule for rules
+	 */
+	private static String frameOf(String theStack) {
+		String[] frames = theStack.split(";");
+		String last = frames[frames.length - 1];
+		if (last.contains("#") || frames.length < 2) {
+			return last;
+		}
+		return frames[frames.length - 2] + "/" + last;
+	}
+
+	private long allocatedBytes() {
+		return myAllocations != null ? myAllocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	private String groupLabel(StructureMap theRoot, String theGroup) {
+		String owner = myContext.getGroupResolution(theRoot).getOwnerUrl(theGroup);
+		return (owner != null ? owner : "?") + "#" + theGroup;
+	}
+
+	private static class Statistics {
+		private final LongAdder myCount = new LongAdder();
+		private final LongAdder mySelfNanos = new LongAdder();
+		private final LongAdder mySelfBytes = new LongAdder();
+	}
+
+	private static class Frame {
+		private final int myIndent;
+		private final String myStack;
+		private final long myStartNanos;
+		private final long myStartBytes;
+		private long myChildNanos;
+		private long myChildBytes;
+
+		private Frame(int theIndent, String theStack, long theStartNanos, long theStartBytes) {
+			myIndent = theIndent;
+			myStack = theStack;
+			myStartNanos = theStartNanos;
+			myStartBytes = theStartBytes;
+		}
+	}
+
+	/**
+	 * The call stack of one transformation. Not thread safe.
+	 */
+	public class Recording {
+		private final StructureMap myMap;
+		private final Deque<Frame> myFrames = new ArrayDeque<>();
+		private int myFrameCount;
+
+		private Recording(StructureMap theMap) {
+			myMap = theMap;
+		}
+
+		/**
+		 * Starts a frame if the message is the start of a group or rule.
+		 */
+		public void log(String theMessage) {
+			int indent = 0;
+			while (indent < theMessage.length() && theMessage.charAt(indent) == ' ') {
+				indent++;
+			}
+			boolean group = theMessage.startsWith(GROUP, indent);
+			if (!group && !theMessage.startsWith(RULE, indent)) {
+				return;
+			}
+			long nanos = System.nanoTime();
+			long bytes = allocatedBytes();
+			while (!myFrames.isEmpty() && myFrames.peek().myIndent >= indent) {
+				close(myFrames.pop(), nanos, bytes);
+			}
+			int start = indent + (group ? GROUP.length() : RULE.length());
+			int end = theMessage.indexOf(';', start);
+			String name = theMessage.substring(start, end != -1 ? end : theMessage.length()).trim();
+			String label = group ? groupLabel(myMap, name) : name;
+			String parent = myFrames.isEmpty() ? myMap.getUrl() : myFrames.peek().myStack;
+			myFrames.push(new Frame(indent, parent + ";" + label, nanos, bytes));
+			myFrameCount++;
+		}
+
+		/**
+		 * Ends the open frames, called when the transformation is done (or failed).
+		 */
+		public void finish() {
+			long nanos = System.nanoTime();
+			long bytes = allocatedBytes();
+			while (!myFrames.isEmpty()) {
+				close(myFrames.pop(), nanos, bytes);
+			}
+			if (myFrameCount == 0) {
+				ourLog.warn("Profiled transformation with {} recorded no group or rule, the engine's log lines did not match '{}' or '{}'",
+					myMap.getUrl(), GROUP.trim(), RULE.trim());
+			}
+		}
+
+		private void close(Frame theFrame, long theNanos, long theBytes) {
+			long totalNanos = theNanos - theFrame.myStartNanos;
+			long totalBytes = theBytes - theFrame.myStartBytes;
+			Frame parent = myFrames.peek();
+			if (parent != null) {
+				parent.myChildNanos += totalNanos;
+				parent.myChildBytes += totalBytes;
+			}
+			Statistics statistics = myStacks.computeIfAbsent(theFrame.myStack, s -> new Statistics());
+			statistics.myCount.increment();
+			statistics.mySelfNanos.add(totalNanos - theFrame.myChildNanos);
+			statistics.mySelfBytes.add(totalBytes - theFrame.myChildBytes);
+		}
+	}
+}
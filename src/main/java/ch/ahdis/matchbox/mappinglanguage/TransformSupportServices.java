@@ -12,17 +12,34 @@ import org.hl7.fhir.r5.model.Coding;
 import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.r5.utils.structuremap.ITransformerServices;
 
-import ca.uhn.fhir.context.FhirContext;
-
 public class TransformSupportServices implements ITransformerServices {
 
   private List<Base> outputs;
   private ConvertingWorkerContext fhirContext;
+  private UuidGenerator uuidGenerator;
+  // null if the transformation is not profiled
+  private StructureMapProfiler.Recording recording;
   protected static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TransformSupportServices.class);
 
   public TransformSupportServices(ConvertingWorkerContext fhirContext, List<Base> outputs) {
+    this(fhirContext, outputs, UuidGenerator.random().create(-1));
+  }
+
+  public TransformSupportServices(ConvertingWorkerContext fhirContext, List<Base> outputs, UuidGenerator uuidGenerator) {
     this.fhirContext = fhirContext;
     this.outputs = outputs;
+    this.uuidGenerator = uuidGenerator;
+  }
+
+  public void setRecording(StructureMapProfiler.Recording recording) {
+    this.recording = recording;
+  }
+
+  /**
+   * @return the value of a uuid() transform
+   */
+  public String newUuid() {
+    return uuidGenerator.newUuid();
   }
 
   @Override
@@ -48,7 +65,7 @@ public class TransformSupportServices implements ITransformerServices {
   public Base resolveReference(Object appContext, String url) throws FHIRException {	
 	org.hl7.fhir.r4.model.Resource resource = fhirContext.fetchResourceAsR4(org.hl7.fhir.r4.model.Resource.class, url);
     if (resource != null) {
-      String inStr = FhirContext.forR4Cached().newJsonParser().encodeResourceToString(resource);
+      String inStr = fhirContext.getFhirContext().newJsonParser().encodeResourceToString(resource);
       try {
         return Manager.parseSingle(fhirContext, new ByteArrayInputStream(inStr.getBytes()), FhirFormat.JSON);
       } catch (IOException e) {
@@ -65,6 +82,8 @@ public class TransformSupportServices implements ITransformerServices {
 
   @Override
   public void log(String message) {
+    if (recording != null)
+      recording.log(message);
     log.debug(message);
   }
 
@@ -0,0 +1,52 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates the values of the <code>uuid()</code> transform of the StructureMaps, see
+ * {@link MatchboxStructureMapUtilities#prepare}. The values are random (version 4) UUIDs.
+ */
+public interface UuidGenerator {
+
+	String newUuid();
+
+	/**
+	 * Creates the generator of one transformation.
+	 */
+	interface Factory {
+
+		/**
+		 * @param thePart the part of the document transformed, the section index for sectioned transformations, -1
+		 *                for a whole document or the document without its sections
+		 */
+		UuidGenerator create(int thePart);
+	}
+
+	/**
+	 * @return generators using the random of the current thread, which (unlike {@link UUID#randomUUID()} and its
+	 * shared SecureRandom) does not contend between parallel transformations; the values are not suitable as secrets
+	 */
+	static Factory random() {
+		UuidGenerator generator = () -> toUuid(ThreadLocalRandom.current().nextLong(), ThreadLocalRandom.current().nextLong());
+		return thePart -> generator;
+	}
+
+	/**
+	 * @return generators producing the same sequence for each document and part, for reproducible benchmark and
+	 * regression outputs
+	 */
+	static Factory seeded(long theSeed) {
+		return thePart -> {
+			SplittableRandom random = new SplittableRandom(theSeed + thePart * 0x9E3779B97F4A7C15L);
+			return () -> toUuid(random.nextLong(), random.nextLong());
+		};
+	}
+
+	private static String toUuid(long theMostSigBits, long theLeastSigBits) {
+		long msb = (theMostSigBits & ~0xF000L) | 0x4000L;
+		long lsb = (theLeastSigBits & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		return new UUID(msb, lsb).toString();
+	}
+}
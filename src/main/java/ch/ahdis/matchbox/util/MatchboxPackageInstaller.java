@@ -0,0 +1,22 @@
+package ch.ahdis.matchbox.util;
+
+import ca.uhn.fhir.jpa.packages.ImplementationGuideInstallationException;
+import ca.uhn.fhir.jpa.packages.PackageInstallOutcomeJson;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+
+/**
+ * Installs the conformance resources of an NPM package into the backend used by the transformer, either the
+ * JPA database ({@link MatchboxPackageInstallerImpl}) or the read-only in-memory store of the transform-only profile.
+ */
+public interface MatchboxPackageInstaller {
+
+	/**
+	 * Installs the package with the default {@link PackageInstallFilter}, i.e. without the examples.
+	 */
+	default PackageInstallOutcomeJson install(PackageInstallationSpec theInstallationSpec) throws ImplementationGuideInstallationException {
+		return install(theInstallationSpec, new PackageInstallFilter());
+	}
+
+	PackageInstallOutcomeJson install(PackageInstallationSpec theInstallationSpec, PackageInstallFilter theFilter) throws ImplementationGuideInstallationException;
+
+}
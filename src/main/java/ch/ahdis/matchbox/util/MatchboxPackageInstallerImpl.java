@@ -9,65 +9,108 @@ import ca.uhn.fhir.jpa.packages.JpaPackageCache;
 import ca.uhn.fhir.jpa.packages.PackageInstallOutcomeJson;
 import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.UriOrListParam;
 import ca.uhn.fhir.rest.param.UriParam;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
-import ca.uhn.fhir.util.FhirTerser;
-import org.hl7.fhir.instance.model.api.IBase;
+import ch.ahdis.matchbox.conformance.ResourceManifest;
+import ch.ahdis.matchbox.conformance.ResourceManifestEntry;
+import ch.ahdis.matchbox.conformance.ResourceManifestExtractor;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.utilities.npm.IPackageCacheManager;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.hl7.fhir.utilities.npm.NpmPackage.NpmPackageFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
+import org.springframework.beans.factory.annotation.Value;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * This is a copy of ca.uhn.fhir.jpa.packages.PackageInstallerSvcImpl
  * with the following modifications:
  * - Resources with status "draft" are also loaded
- * - examples are also loaded
+ * - the folders, resource types and urls to install are selected with a {@link PackageInstallFilter}
+ * - package files are parsed in parallel on a bounded pool while the resources are written, with a bounded number
+ *   of files parsed ahead
+ * - url, version, status and unique ids are extracted once per resource and recorded in the {@link ResourceManifest}
+ * - the existing resources are looked up with one search per resource type (and chunk) instead of one per resource
  * Modifications are marked in source code comments with "MODIFIED"
  * <p>
  * //!\\ Work only with R4, R5 and DSTU3 FHIR version
  *
  * @author alexander kreutz
  */
-public class MatchboxPackageInstallerImpl {
+public class MatchboxPackageInstallerImpl implements MatchboxPackageInstaller {
 
 	private static final Logger ourLog = LoggerFactory.getLogger(MatchboxPackageInstallerImpl.class);
 
-	@Autowired
-	private ApplicationContext appCtx;
+	// number of urls (or NamingSystem values) per existence search
+	private static final int EXISTENCE_SEARCH_CHUNK_SIZE = 200;
+
+	// number of files parsed ahead of the writing thread per parsing thread
+	private static final int PARSE_AHEAD_PER_THREAD = 4;
 
 	@Autowired
 	private JpaPackageCache myPackageCacheManager;
 
+	@Autowired
 	private FhirContext myFhirContext;
 
+	@Autowired
 	private DaoRegistry myDaoRegistry;
 
+	@Autowired
+	private ResourceManifest myManifest;
+
+	private ResourceManifestExtractor myManifestExtractor;
+
+	// number of threads parsing package files, 0 uses one per available processor
+	@Value("${matchbox.igs.parse-threads:0}")
+	private int myParseThreads;
+
+	private ForkJoinPool myParsePool;
+
+	// IParser instances are not thread safe, each parsing thread keeps its own
+	private final ThreadLocal<IParser> myParser = ThreadLocal.withInitial(() -> myFhirContext.newJsonParser());
+
 	/**
 	 * Constructor
 	 */
 	public MatchboxPackageInstallerImpl() {
 		super();
-		this.myFhirContext = FhirContext.forR4();
 	}
 
 	@PostConstruct
 	private void postConstruct() {
-		this.myDaoRegistry = new DaoRegistry(this.myFhirContext);
-		this.myDaoRegistry.setApplicationContext(appCtx);
+		this.myManifestExtractor = new ResourceManifestExtractor(this.myFhirContext);
+		this.myParsePool = new ForkJoinPool(myParseThreads > 0 ? myParseThreads : Runtime.getRuntime().availableProcessors());
+	}
+
+	@PreDestroy
+	private void preDestroy() {
+		this.myParsePool.shutdownNow();
 	}
 
 	/**
@@ -82,8 +125,10 @@ public class MatchboxPackageInstallerImpl {
 	 * Creates the resources if non-existent, updates them otherwise.
 	 *
 	 * @param theInstallationSpec The details about what should be installed
+	 * @param theFilter           The parts of the package to install
 	 */
-	public PackageInstallOutcomeJson install(PackageInstallationSpec theInstallationSpec) throws ImplementationGuideInstallationException {
+	@Override
+	public PackageInstallOutcomeJson install(PackageInstallationSpec theInstallationSpec, PackageInstallFilter theFilter) throws ImplementationGuideInstallationException {
 		PackageInstallOutcomeJson retVal = new PackageInstallOutcomeJson();
 		try {
 			NpmPackage npmPackage = myPackageCacheManager.installPackage(theInstallationSpec);
@@ -94,7 +139,7 @@ public class MatchboxPackageInstallerImpl {
 			retVal.getMessage().addAll(JpaPackageCache.getProcessingMessages(npmPackage));
 
 			if (theInstallationSpec.getInstallMode() == PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL) {
-				install(npmPackage, theInstallationSpec, retVal);
+				install(npmPackage, theInstallationSpec, theFilter, retVal);
 			}
 
 		} catch (IOException e) {
@@ -110,29 +155,71 @@ public class MatchboxPackageInstallerImpl {
 	 *
 	 * @throws ImplementationGuideInstallationException if installation fails
 	 */
-	private void install(NpmPackage npmPackage, PackageInstallationSpec theInstallationSpec, PackageInstallOutcomeJson theOutcome) throws ImplementationGuideInstallationException {
+	private void install(NpmPackage npmPackage, PackageInstallationSpec theInstallationSpec, PackageInstallFilter theFilter, PackageInstallOutcomeJson theOutcome) throws ImplementationGuideInstallationException {
 		String name = npmPackage.getNpm().get("name").getAsString();
 		String version = npmPackage.getNpm().get("version").getAsString();
 
 		List<String> installTypes = theInstallationSpec.getInstallResourceTypes();
 
 		ourLog.info("Installing package: {}#{}", name, version);
+		// MODIFIED: the manifest entries of an earlier installation of the package are replaced
+		myManifest.removePackage(name + "#" + version);
 		int[] count = new int[installTypes.size()];
 
 		IBaseResource ig = null;
 
+		// MODIFIED: the files are parsed on the parse pool in package order, a bounded number ahead of the thread
+		// writing the resources, so only the resources of the type being written and the window are held in memory
+		List<PackageFile> files = new ArrayList<>();
+		int[] filesPerType = new int[installTypes.size()];
 		for (int i = 0; i < installTypes.size(); i++) {
-			Collection<IBaseResource> resources = parseResourcesOfType(installTypes.get(i), npmPackage);
-			count[i] = resources.size();
+			if (theFilter.acceptsResourceType(installTypes.get(i))) {
+				int before = files.size();
+				listFilesOfType(installTypes.get(i), npmPackage, theFilter, files);
+				filesPerType[i] = files.size() - before;
+			}
+		}
+		Iterator<PackageFile> pending = files.iterator();
+		Deque<ForkJoinTask<IBaseResource>> parsed = new ArrayDeque<>();
+		int window = myParsePool.getParallelism() * PARSE_AHEAD_PER_THREAD;
 
-			for (IBaseResource next : resources) {
-				try {
-					create(next, theOutcome);
-				} catch (Exception e) {
-					ourLog.debug("Failed to upload resource of type {} with ID {} - Error: {}", myFhirContext.getResourceType(next), next.getIdElement().getValue(), e.toString());
-					throw new ImplementationGuideInstallationException(String.format("Error installing IG %s#%s: %s", name, version, e.toString()), e);
+		try {
+			for (int i = 0; i < installTypes.size(); i++) {
+				List<IBaseResource> resources = new ArrayList<>();
+				List<ResourceManifestEntry> entries = new ArrayList<>();
+				for (int f = 0; f < filesPerType[i]; f++) {
+					while (parsed.size() < window && pending.hasNext()) {
+						parsed.add(parse(pending.next()));
+					}
+					IBaseResource next = parsed.poll().join();
+					ResourceManifestEntry entry = myManifestExtractor.extract(next);
+					if (!entry.isInstallable() || !acceptsUrl(entry, theFilter)) {
+						continue;
+					}
+					entry.setPackageId(name + "#" + version);
+					resources.add(next);
+					entries.add(entry);
+				}
+				if (resources.isEmpty()) {
+					continue;
+				}
+
+				// MODIFIED: the existing resources of the type are resolved in bulk before writing
+				Map<String, IIdType> existing = findExisting(installTypes.get(i), entries);
+				for (int j = 0; j < resources.size(); j++) {
+					IBaseResource next = resources.get(j);
+					count[i]++;
+					try {
+						create(next, entries.get(j), existing, theOutcome);
+						myManifest.add(entries.get(j));
+					} catch (Exception e) {
+						ourLog.debug("Failed to upload resource of type {} with ID {} - Error: {}", myFhirContext.getResourceType(next), next.getIdElement().getValue(), e.toString());
+						throw new ImplementationGuideInstallationException(String.format("Error installing IG %s#%s: %s", name, version, e.toString()), e);
+					}
 				}
 			}
+		} finally {
+			parsed.forEach(task -> task.cancel(false));
 		}
 
 		// Modified add log
@@ -159,62 +246,139 @@ public class MatchboxPackageInstallerImpl {
 	 * ============================= Utility methods ===============================
 	 */
 
-	// MODIFIED: This method has been reimplemented: also add example folder 
-	private List<IBaseResource> parseResourcesOfType(String type, NpmPackage pkg) {
-		ArrayList<IBaseResource> resources = new ArrayList<>();
-
-		addFolder(type, pkg.getFolders().get("package"), resources);
-
-		NpmPackageFolder exampleFolder = pkg.getFolders().get("example");
-		if (exampleFolder != null) {
-			try {
-				pkg.indexFolder("example", exampleFolder);
-				addFolder(type, exampleFolder, resources);
-			} catch (IOException e) {
-				throw new InternalErrorException("Cannot install resource of type " + type + ": Could not read example directory", e);
+	// MODIFIED: This method has been reimplemented: add the folders selected by the filter (e.g. example)
+	private void listFilesOfType(String type, NpmPackage pkg, PackageInstallFilter theFilter, List<PackageFile> files) {
+		for (String folderName : theFilter.getFolders()) {
+			NpmPackageFolder folder = pkg.getFolders().get(folderName);
+			if (folder == null) {
+				continue;
 			}
+			// only the package folder is shipped with an .index.json
+			if (folder.getTypes().isEmpty()) {
+				try {
+					pkg.indexFolder(folderName, folder);
+				} catch (IOException e) {
+					throw new InternalErrorException("Cannot install resource of type " + type + ": Could not read " + folderName + " directory", e);
+				}
+			}
+			addFolder(type, folder, files);
 		}
-		return resources;
 	}
 
-	// MODIFIED: This utility method has been added. It is used by parseResourcesOfType(type, pkg)
-	private void addFolder(String type, NpmPackageFolder folder, List<IBaseResource> resources) {
+	// MODIFIED: This utility method has been added. NamingSystems are not filtered by url.
+	private boolean acceptsUrl(ResourceManifestEntry theEntry, PackageInstallFilter theFilter) {
+		if (!theFilter.hasUrlPatterns() || theEntry.getResourceType().equals("NamingSystem")) {
+			return true;
+		}
+		return theFilter.acceptsUrl(theEntry.getUrl());
+	}
+
+	// MODIFIED: This utility method has been added. It is used by listFilesOfType(type, pkg)
+	// The files are listed in the order of the folder index
+	private void addFolder(String type, NpmPackageFolder folder, List<PackageFile> files) {
 		if (folder == null) return;
 		List<String> filesForType = folder.getTypes().get(type);
 		if (filesForType == null) return;
 		for (String file : filesForType) {
+			files.add(new PackageFile(type, folder, file));
+		}
+	}
+
+	// MODIFIED: This utility method has been added. The file is parsed from its bytes on the parse pool
+	private ForkJoinTask<IBaseResource> parse(PackageFile theFile) {
+		return myParsePool.submit(() -> {
 			try {
-				byte[] content = folder.fetchFile(file);
-				resources.add(myFhirContext.newJsonParser().parseResource(new String(content)));
+				byte[] content = theFile.myFolder.fetchFile(theFile.myFile);
+				return myParser.get().parseResource(new ByteArrayInputStream(content));
 			} catch (IOException e) {
-				throw new InternalErrorException("Cannot install resource of type " + type + ": Could not fetch file " + file, e);
+				throw new InternalErrorException("Cannot install resource of type " + theFile.myType + ": Could not fetch file " + theFile.myFile, e);
 			}
-		}
+		});
 	}
 
 	public void create(IBaseResource theResource, PackageInstallOutcomeJson theOutcome) {
+		ResourceManifestEntry entry = myManifestExtractor.extract(theResource);
+		if (entry.isInstallable()) {
+			create(theResource, entry, findExisting(entry.getResourceType(), Collections.singletonList(entry)), theOutcome);
+		}
+	}
+
+	// MODIFIED: the existence check uses the map resolved by findExisting, which is updated with created resources
+	private void create(IBaseResource theResource, ResourceManifestEntry theEntry, Map<String, IIdType> theExisting, PackageInstallOutcomeJson theOutcome) {
 		IFhirResourceDao dao = myDaoRegistry.getResourceDao(theResource.getClass());
-		SearchParameterMap map = createSearchParameterMapFor(theResource);
-		IBundleProvider searchResult = searchResource(dao, map);
-		if (validForUpload(theResource)) {
-			if (searchResult.isEmpty()) {
+		String key = existenceKey(theEntry);
+		IIdType existingId = key != null ? theExisting.get(key) : null;
+		if (existingId == null) {
 
-				ourLog.debug("Creating new resource matching {}", map.toNormalizedQueryString(myFhirContext));
-				theOutcome.incrementResourcesInstalled(myFhirContext.getResourceType(theResource));
+			ourLog.debug("Creating new resource {} {}", theEntry.getResourceType(), key);
+			theOutcome.incrementResourcesInstalled(myFhirContext.getResourceType(theResource));
 
-				updateResource(dao, theResource);
-				ourLog.debug("Created resource with existing id");
+			DaoMethodOutcome outcome = updateResource(dao, theResource);
+			if (key != null) {
+				theExisting.put(key, outcome.getId().toUnqualifiedVersionless());
+			}
+			ourLog.debug("Created resource with existing id");
 
+		} else {
+			ourLog.debug("Updating existing resource {} {}", theEntry.getResourceType(), key);
+			theResource.setId(existingId);
+			DaoMethodOutcome outcome = updateResource(dao, theResource);
+			if (!outcome.isNop()) {
+				theOutcome.incrementResourcesInstalled(myFhirContext.getResourceType(theResource));
+			}
+		}
+	}
+
+	/**
+	 * Resolves the ids of the stored resources matching the urls (NamingSystem: unique id values) of the entries,
+	 * with one search per chunk of {@link #EXISTENCE_SEARCH_CHUNK_SIZE} keys.
+	 *
+	 * @return url or unique id value -> versionless id of the first matching resource
+	 */
+	private Map<String, IIdType> findExisting(String theResourceType, List<ResourceManifestEntry> theEntries) {
+		Map<String, IIdType> retVal = new HashMap<>();
+		IFhirResourceDao dao = myDaoRegistry.getResourceDao(theResourceType);
+		boolean namingSystem = theResourceType.equals("NamingSystem");
+
+		Set<String> keys = new LinkedHashSet<>();
+		for (ResourceManifestEntry next : theEntries) {
+			String key = existenceKey(next);
+			if (key != null) {
+				keys.add(key);
+			}
+		}
+		List<String> keyList = new ArrayList<>(keys);
+
+		for (int from = 0; from < keyList.size(); from += EXISTENCE_SEARCH_CHUNK_SIZE) {
+			List<String> chunk = keyList.subList(from, Math.min(from + EXISTENCE_SEARCH_CHUNK_SIZE, keyList.size()));
+			SearchParameterMap map = SearchParameterMap.newSynchronous();
+			if (namingSystem) {
+				StringOrListParam values = new StringOrListParam();
+				chunk.forEach(value -> values.addOr(new StringParam(value).setExact(true)));
+				map.add("value", values);
 			} else {
-				ourLog.debug("Updating existing resource matching {}", map.toNormalizedQueryString(myFhirContext));
-				theResource.setId(searchResult.getResources(0, 1).get(0).getIdElement().toUnqualifiedVersionless());
-				DaoMethodOutcome outcome = updateResource(dao, theResource);
-				if (!outcome.isNop()) {
-					theOutcome.incrementResourcesInstalled(myFhirContext.getResourceType(theResource));
-				}
+				UriOrListParam urls = new UriOrListParam();
+				chunk.forEach(url -> urls.addOr(new UriParam(url)));
+				map.add("url", urls);
 			}
 
+			Set<String> chunkKeys = new HashSet<>(chunk);
+			IBundleProvider searchResult = searchResource(dao, map);
+			for (IBaseResource found : searchResult.getAllResources()) {
+				ResourceManifestEntry foundEntry = myManifestExtractor.extract(found);
+				IIdType id = found.getIdElement().toUnqualifiedVersionless();
+				if (namingSystem) {
+					for (ResourceManifestEntry.UniqueId uniqueId : foundEntry.getUniqueIds()) {
+						if (chunkKeys.contains(uniqueId.getValue())) {
+							retVal.putIfAbsent(uniqueId.getValue(), id);
+						}
+					}
+				} else if (foundEntry.getUrl() != null) {
+					retVal.putIfAbsent(foundEntry.getUrl(), id);
+				}
+			}
 		}
+		return retVal;
 	}
 
 	private IBundleProvider searchResource(IFhirResourceDao theDao, SearchParameterMap theMap) {
@@ -225,42 +389,26 @@ public class MatchboxPackageInstallerImpl {
 		return theDao.update(theResource);
 	}
 
-	// MODIFIED: This method has been modified: Also allow Resources with status "draft"
-	boolean validForUpload(IBaseResource theResource) {
-		List<IPrimitiveType> statusTypes = myFhirContext.newFhirPath().evaluate(theResource, "status", IPrimitiveType.class);
-		if (statusTypes.size() > 0) {
-			// Modified condition
-			if (!statusTypes.get(0).getValueAsString().equals("active") && !statusTypes.get(0).getValueAsString().equals("draft")) {
-				return false;
+	// NamingSystems are identified by their first unique id, all other resources by their url
+	private String existenceKey(ResourceManifestEntry theEntry) {
+		if (theEntry.getResourceType().equals("NamingSystem")) {
+			if (theEntry.getUniqueIds().isEmpty()) {
+				throw new ImplementationGuideInstallationException("NamingSystem does not have uniqueId component.");
 			}
+			return theEntry.getUniqueIds().get(0).getValue();
 		}
-
-		return true;
+		return theEntry.getUrl();
 	}
 
-	private SearchParameterMap createSearchParameterMapFor(IBaseResource resource) {
-		if (resource.getClass().getSimpleName().equals("NamingSystem")) {
-			String uniqueId = extractUniqeIdFromNamingSystem(resource);
-			return SearchParameterMap.newSynchronous().add("value", new StringParam(uniqueId).setExact(true));
-		} else {
-			String url = extractUniqueUrlFromMetadataResource(resource);
-			return SearchParameterMap.newSynchronous().add("url", new UriParam(url));
-		}
-	}
+	private static class PackageFile {
+		private final String myType;
+		private final NpmPackageFolder myFolder;
+		private final String myFile;
 
-	private String extractUniqeIdFromNamingSystem(IBaseResource resource) {
-		FhirTerser terser = myFhirContext.newTerser();
-		IBase uniqueIdComponent = (IBase) terser.getSingleValueOrNull(resource, "uniqueId");
-		if (uniqueIdComponent == null) {
-			throw new ImplementationGuideInstallationException("NamingSystem does not have uniqueId component.");
+		private PackageFile(String theType, NpmPackageFolder theFolder, String theFile) {
+			myType = theType;
+			myFolder = theFolder;
+			myFile = theFile;
 		}
-		IPrimitiveType<?> asPrimitiveType = (IPrimitiveType<?>) terser.getSingleValueOrNull(uniqueIdComponent, "value");
-		return (String) asPrimitiveType.getValue();
-	}
-
-	private String extractUniqueUrlFromMetadataResource(IBaseResource resource) {
-		FhirTerser terser = myFhirContext.newTerser();
-		IPrimitiveType<?> asPrimitiveType = (IPrimitiveType<?>) terser.getSingleValueOrNull(resource, "url");
-		return (String) asPrimitiveType.getValue();
 	}
 }
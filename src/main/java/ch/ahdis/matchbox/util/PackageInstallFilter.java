@@ -0,0 +1,111 @@
+package ch.ahdis.matchbox.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Restricts which resources of an NPM package are installed. Configured per implementation guide under
+ * <code>matchbox.igs.filters.&lt;key&gt;</code>, e.g.
+ * <pre>
+ * matchbox:
+ *   igs:
+ *     filters:
+ *       core:
+ *         resource-types: StructureDefinition,ValueSet,CodeSystem
+ *         exclude-urls: http://fhir.ch/ig/ch-core/StructureDefinition/ch-core-.*-epr
+ * </pre>
+ * By default only the "package" folder is installed, the examples have to be requested explicitly by adding
+ * "example" to the folders.
+ */
+public class PackageInstallFilter {
+
+	public static final String FOLDER_PACKAGE = "package";
+
+	private List<String> folders = Collections.singletonList(FOLDER_PACKAGE);
+	private List<String> resourceTypes = new ArrayList<>();
+	private List<String> includeUrls = new ArrayList<>();
+	private List<String> excludeUrls = new ArrayList<>();
+
+	// compiled when the urls are set, the filter is only read by the installers
+	private List<Pattern> includePatterns = Collections.emptyList();
+	private List<Pattern> excludePatterns = Collections.emptyList();
+
+	public List<String> getFolders() {
+		return folders;
+	}
+
+	public void setFolders(List<String> folders) {
+		this.folders = folders;
+	}
+
+	public List<String> getResourceTypes() {
+		return resourceTypes;
+	}
+
+	public void setResourceTypes(List<String> resourceTypes) {
+		this.resourceTypes = resourceTypes;
+	}
+
+	public List<String> getIncludeUrls() {
+		return includeUrls;
+	}
+
+	public void setIncludeUrls(List<String> includeUrls) {
+		this.includeUrls = includeUrls;
+		this.includePatterns = compile(includeUrls);
+	}
+
+	public List<String> getExcludeUrls() {
+		return excludeUrls;
+	}
+
+	public void setExcludeUrls(List<String> excludeUrls) {
+		this.excludeUrls = excludeUrls;
+		this.excludePatterns = compile(excludeUrls);
+	}
+
+	/**
+	 * An empty list of resource types accepts all types requested by the installation spec.
+	 */
+	public boolean acceptsResourceType(String theResourceType) {
+		return resourceTypes.isEmpty() || resourceTypes.contains(theResourceType);
+	}
+
+	public boolean hasUrlPatterns() {
+		return !includeUrls.isEmpty() || !excludeUrls.isEmpty();
+	}
+
+	/**
+	 * Urls are matched against the whole canonical url; a resource without url is only accepted if no include
+	 * patterns are configured.
+	 */
+	public boolean acceptsUrl(String theUrl) {
+		if (theUrl == null) {
+			return includeUrls.isEmpty();
+		}
+		for (Pattern next : excludePatterns) {
+			if (next.matcher(theUrl).matches()) {
+				return false;
+			}
+		}
+		if (includeUrls.isEmpty()) {
+			return true;
+		}
+		for (Pattern next : includePatterns) {
+			if (next.matcher(theUrl).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<Pattern> compile(List<String> theRegexes) {
+		List<Pattern> retVal = new ArrayList<>(theRegexes.size());
+		for (String next : theRegexes) {
+			retVal.add(Pattern.compile(next));
+		}
+		return retVal;
+	}
+}
@@ -0,0 +1,49 @@
+package ch.ahdis.matchbox.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Initializes all resource definitions of the FhirContext shared by the application at startup, so that the model
+ * scanning is done once and not during the first requests, and reports what it cost: the scan time, the bytes
+ * allocated by the scan and the growth of the used heap (what the definitions retain, plus garbage not collected
+ * yet). Types already scanned by other beans are not measured.
+ */
+public class SharedFhirContextReport {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(SharedFhirContextReport.class);
+
+	private final FhirContext myFhirContext;
+
+	public SharedFhirContextReport(FhirContext theFhirContext) {
+		myFhirContext = theFhirContext;
+	}
+
+	@PostConstruct
+	public void initialize() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = allocations != null ? allocations.getThreadAllocatedBytes(threadId) : 0;
+		long heapBefore = memory.getHeapMemoryUsage().getUsed();
+		long start = System.nanoTime();
+		int types = 0;
+		for (String resourceType : myFhirContext.getResourceTypes()) {
+			myFhirContext.getResourceDefinition(resourceType);
+			types++;
+		}
+		long elapsedMs = (System.nanoTime() - start) / 1000000;
+		long heapDeltaKb = (memory.getHeapMemoryUsage().getUsed() - heapBefore) / 1024;
+		long allocatedKb = allocations != null ? (allocations.getThreadAllocatedBytes(threadId) - allocatedBefore) / 1024 : -1;
+		ourLog.info("Initialized {} resource definitions of the shared {} FhirContext in {} ms ({}, used heap {} kB)",
+			types, myFhirContext.getVersion().getVersion(), elapsedMs, allocatedKb < 0 ? "allocations n/a" : allocatedKb + " kB allocated",
+			(heapDeltaKb >= 0 ? "+" : "") + heapDeltaKb);
+	}
+}
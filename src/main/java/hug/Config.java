@@ -2,13 +2,23 @@ package hug;
 
 import ch.ahdis.fhir.hapi.jpa.validation.ImplementationGuideProvider;
 import ch.ahdis.matchbox.mappinglanguage.ConvertingWorkerContext;
+import ch.ahdis.matchbox.mappinglanguage.SectionMemo;
+import ch.ahdis.matchbox.mappinglanguage.SectionedTransformer;
+import ch.ahdis.matchbox.mappinglanguage.StructureMapProfiler;
+import ch.ahdis.matchbox.mappinglanguage.UuidGenerator;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.io.IOException;
 
 @Configuration
+@EnableConfigurationProperties(TransformProperties.class)
 public class Config {
 
 	@Autowired
@@ -17,8 +27,48 @@ public class Config {
 	@Autowired
 	private ImplementationGuideProvider igp;
 
+	@Autowired(required = false)
+	private MeterRegistry meterRegistry;
+
+	@Bean
+	public TransformMetrics transformMetrics() {
+		return new TransformMetrics(meterRegistry != null ? meterRegistry : Metrics.globalRegistry);
+	}
+
+	@Bean
+	public SectionedTransformer sectionedTransformer(TransformProperties properties, UuidGenerator.Factory uuidGenerators, ObjectProvider<StructureMapProfiler> profiler) {
+		TransformProperties.SplitMemo memoProperties = properties.getSplitMemo();
+		SectionMemo memo = null;
+		if (memoProperties.getMaximumSize() > 0) {
+			memo = new SectionMemo(memoProperties.getMaximumSize(), memoProperties.getExpireAfterAccess());
+			convertingWorkerContext.addInstallListener(memo::invalidateAll);
+		}
+		return new SectionedTransformer(properties.getSplit(), properties.getSplitThreads(), memo, uuidGenerators, profiler.getIfAvailable());
+	}
+
+	@Bean
+	@ConditionalOnProperty(name = "matchbox.transform.profiler.enabled", havingValue = "true")
+	public StructureMapProfiler structureMapProfiler(TransformProperties properties) {
+		return new StructureMapProfiler(convertingWorkerContext, properties.getProfiler().getOutput());
+	}
+
+	@Bean
+	public UuidGenerator.Factory uuidGenerators(TransformProperties properties) {
+		Long seed = properties.getUuidSeed();
+		return seed != null ? UuidGenerator.seeded(seed) : UuidGenerator.random();
+	}
+
+	@Bean
+	@ConditionalOnProperty(name = "matchbox.transform.result-cache.maximum-bytes")
+	public TransformResultCache transformResultCache(TransformProperties properties) {
+		TransformProperties.ResultCache cache = properties.getResultCache();
+		TransformResultCache retVal = new TransformResultCache(cache.getMaximumBytes(), cache.getExpireAfterAccess(), cache.getSpillDirectory(), cache.getSpillMaximumBytes(), meterRegistry != null ? meterRegistry : Metrics.globalRegistry);
+		convertingWorkerContext.addInstallListener(retVal::invalidateAll);
+		return retVal;
+	}
+
 	@Bean
-	public Transform transformBean() throws IOException {
-		return new Transform(igp, convertingWorkerContext);
+	public Transform transformBean(TransformProperties properties, SectionedTransformer sectionedTransformer, UuidGenerator.Factory uuidGenerators, ObjectProvider<TransformResultCache> resultCache, ObjectProvider<StructureMapProfiler> profiler) throws IOException {
+		return new Transform(igp, convertingWorkerContext, transformMetrics(), sectionedTransformer, resultCache.getIfAvailable(), properties.isTrustedInput(), uuidGenerators, profiler.getIfAvailable());
 	}
 }
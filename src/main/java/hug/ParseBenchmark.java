@@ -0,0 +1,166 @@
+package hug;
+
+import ca.uhn.fhir.jpa.starter.Application;
+import ca.uhn.fhir.jpa.starter.TransformOnlyConfig;
+import ch.ahdis.matchbox.mappinglanguage.ConvertingWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.ParserBase;
+import org.hl7.fhir.r5.elementmodel.ParserBase.ValidationPolicy;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compares the parse modes on a corpus of example documents: the validating mode (location tracking,
+ * {@link ValidationPolicy#EVERYTHING}), the default mode used so far and the trusted input mode
+ * ({@link Transform#newParser}).
+ * <p>
+ * Run as a program, it starts the application with the transform-only profile and without the web server, then
+ * parses every <code>.xml</code> and <code>.json</code> file of the corpus directory in name order. Each mode is
+ * first parsed <code>warmup</code> times over the whole corpus, then every file is measured
+ * <code>iterations</code> times per mode. It logs the median and minimum time and the allocated bytes per parse, and
+ * a checksum of the corpus, so that only runs over the same documents are compared.
+ * <pre>
+ * ParseBenchmark [corpus directory (./examples)] [warmup (20)] [iterations (50)] [spring arguments...]
+ * </pre>
+ */
+public class ParseBenchmark {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ParseBenchmark.class);
+
+	private enum Mode {
+		VALIDATING, DEFAULT, TRUSTED
+	}
+
+	private final ConvertingWorkerContext myContext;
+	private final int myWarmup;
+	private final int myIterations;
+	private final com.sun.management.ThreadMXBean myAllocations;
+
+	public ParseBenchmark(ConvertingWorkerContext theContext, int theWarmup, int theIterations) {
+		if (theIterations < 1) {
+			throw new IllegalArgumentException("At least one measured iteration is needed");
+		}
+		myContext = theContext;
+		myWarmup = theWarmup;
+		myIterations = theIterations;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		myAllocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File directory = new File(args.length > 0 ? args[0] : "./examples");
+		int warmup = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		String[] springArgs = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[0];
+		Map<File, byte[]> corpus = readCorpus(directory);
+
+		try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+			.profiles(TransformOnlyConfig.PROFILE)
+			.web(WebApplicationType.NONE)
+			.run(springArgs)) {
+			new ParseBenchmark(context.getBean(ConvertingWorkerContext.class), warmup, iterations).run(corpus);
+		}
+	}
+
+	/**
+	 * @return the xml and json files of the directory in name order, with their content
+	 */
+	static Map<File, byte[]> readCorpus(File theDirectory) throws IOException {
+		File[] files = theDirectory.listFiles((dir, name) -> name.endsWith(".xml") || name.endsWith(".json"));
+		if (files == null) {
+			throw new IOException(theDirectory + " is not a directory");
+		}
+		Arrays.sort(files);
+		Map<File, byte[]> retVal = new LinkedHashMap<>();
+		for (File file : files) {
+			retVal.put(file, Files.readAllBytes(file.toPath()));
+		}
+		return retVal;
+	}
+
+	public void run(Map<File, byte[]> theCorpus) {
+		CRC32 checksum = new CRC32();
+		long size = 0;
+		Map<File, byte[]> parseable = new LinkedHashMap<>();
+		for (Map.Entry<File, byte[]> next : theCorpus.entrySet()) {
+			checksum.update(next.getValue());
+			size += next.getValue().length;
+			// skip files that are not parseable with the loaded definitions
+			try {
+				for (Mode mode : Mode.values()) {
+					parse(mode, next.getValue(), formatOf(next.getKey()));
+				}
+				parseable.put(next.getKey(), next.getValue());
+			} catch (Exception e) {
+				ourLog.info("Parse benchmark {} skipped: {}", next.getKey().getName(), e.getMessage());
+			}
+		}
+		ourLog.info("Parse benchmark: {} of {} files ({} kB, crc32 {}), {} warm-up and {} measured iterations per mode",
+			parseable.size(), theCorpus.size(), size / 1024, Long.toHexString(checksum.getValue()), myWarmup, myIterations);
+
+		for (Mode mode : Mode.values()) {
+			for (int i = 0; i < myWarmup; i++) {
+				for (Map.Entry<File, byte[]> next : parseable.entrySet()) {
+					parse(mode, next.getValue(), formatOf(next.getKey()));
+				}
+			}
+		}
+
+		for (Map.Entry<File, byte[]> next : parseable.entrySet()) {
+			StringBuilder b = new StringBuilder();
+			for (Mode mode : Mode.values()) {
+				long[] nanos = new long[myIterations];
+				long allocated = 0;
+				for (int i = 0; i < myIterations; i++) {
+					long allocatedBefore = allocatedBytes();
+					long start = System.nanoTime();
+					parse(mode, next.getValue(), formatOf(next.getKey()));
+					nanos[i] = System.nanoTime() - start;
+					allocated += allocatedBytes() - allocatedBefore;
+				}
+				Arrays.sort(nanos);
+				String allocations = myAllocations != null ? (allocated / 1024 / myIterations) + " kB" : "n/a";
+				b.append(String.format("%n  %-10s median %8.2f ms  min %8.2f ms  %10s", mode, nanos[nanos.length / 2] / 1e6, nanos[0] / 1e6, allocations));
+			}
+			ourLog.info("Parse benchmark {} ({} kB):{}", next.getKey().getName(), next.getValue().length / 1024, b);
+		}
+	}
+
+	private static Manager.FhirFormat formatOf(File theFile) {
+		return theFile.getName().endsWith(".xml") ? Manager.FhirFormat.XML : Manager.FhirFormat.JSON;
+	}
+
+	private long allocatedBytes() {
+		return myAllocations != null ? myAllocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	private void parse(Mode theMode, byte[] theContent, Manager.FhirFormat theFormat) {
+		try {
+			ParserBase parser = Transform.newParser(myContext, theFormat, theMode == Mode.TRUSTED);
+			if (theMode == Mode.VALIDATING) {
+				List<ValidationMessage> errors = new ArrayList<>();
+				parser.setupValidation(ValidationPolicy.EVERYTHING, errors);
+			}
+			parser.parseSingle(new ByteArrayInputStream(theContent));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -4,24 +4,25 @@ import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ch.ahdis.fhir.hapi.jpa.validation.ImplementationGuideProvider;
 import ch.ahdis.matchbox.mappinglanguage.ConvertingWorkerContext;
 import ch.ahdis.matchbox.mappinglanguage.ElementModelSorter;
+import ch.ahdis.matchbox.mappinglanguage.GroupResolutionTable;
 import ch.ahdis.matchbox.mappinglanguage.MatchboxStructureMapUtilities;
-import ch.ahdis.matchbox.mappinglanguage.TransformSupportServices;
+import ch.ahdis.matchbox.mappinglanguage.SectionedTransformer;
+import ch.ahdis.matchbox.mappinglanguage.StructureMapProfiler;
+import ch.ahdis.matchbox.mappinglanguage.UuidGenerator;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r5.context.IWorkerContext;
 import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.r5.elementmodel.JsonParser;
 import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.ParserBase;
 import org.hl7.fhir.r5.elementmodel.XmlParser;
 import org.hl7.fhir.r5.formats.IParser;
-import org.hl7.fhir.r5.model.Base;
 import org.hl7.fhir.r5.model.Property;
 import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.r5.model.StructureMap;
-import org.hl7.fhir.r5.utils.structuremap.StructureMapUtilities;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 
 public class Transform {
@@ -30,11 +31,34 @@ public class Transform {
 
 	protected ImplementationGuideProvider igp;
 
-	public Transform(ImplementationGuideProvider igp, ConvertingWorkerContext baseWorkerContext) throws IOException {
+	protected TransformMetrics metrics;
+
+	protected SectionedTransformer sectionedTransformer;
+
+	// null if results are not cached
+	protected TransformResultCache resultCache;
+
+	// parse the source documents without location tracking and comments, see XmlParser.setTrustedInput
+	protected boolean trustedInput;
+
+	// values of the uuid() transforms
+	protected UuidGenerator.Factory uuidGenerators;
+
+	// null if the transformations are not profiled
+	protected StructureMapProfiler profiler;
+
+	public Transform(ImplementationGuideProvider igp, ConvertingWorkerContext baseWorkerContext, TransformMetrics metrics, SectionedTransformer sectionedTransformer, TransformResultCache resultCache, boolean trustedInput, UuidGenerator.Factory uuidGenerators, StructureMapProfiler profiler) throws IOException {
 		this.baseWorkerContext = baseWorkerContext;
 		this.igp = igp;
+		this.metrics = metrics;
+		this.sectionedTransformer = sectionedTransformer;
+		this.resultCache = resultCache;
+		this.trustedInput = trustedInput;
+		this.uuidGenerators = uuidGenerators;
+		this.profiler = profiler;
 
 		this.igp.loadAll();
+		GroupResolutionTable.verifyEngine(baseWorkerContext);
 
 		try {
 			transform("http://fhir.ch/ig/cda-fhir-maps/StructureMap/CdaChEmedMedicationTreatmentPlanDocumentToBundle", Manager.FhirFormat.XML);
@@ -42,6 +66,8 @@ public class Transform {
 		} catch (IOException ignored) {
 
 		}
+		// the configured splits are enabled once verified
+		sectionedTransformer.verifyConfigs(baseWorkerContext, (is, format) -> newParser(baseWorkerContext, format, trustedInput).parseSingle(is), map -> getTargetResourceFromStructureMap(map, baseWorkerContext));
 	}
 
 	public void transform(String source, Manager.FhirFormat format) throws IOException {
@@ -61,47 +87,116 @@ public class Transform {
 	}
 
 	private void transformDoc(StructureMap map, ConvertingWorkerContext fhirContext, String src_path, Manager.FhirFormat src_format) throws IOException {
-		File f = new File(src_path);
-		InputStream is = new FileInputStream(f);
+		boolean success = false;
+		try {
+			doTransformDoc(map, fhirContext, src_path, src_format);
+			success = true;
+		} finally {
+			metrics.documentTransformed(map.getUrl(), src_format, success);
+		}
+	}
 
-		Element src = Manager.parseSingle(fhirContext, is, src_format);
+	private void doTransformDoc(StructureMap map, ConvertingWorkerContext fhirContext, String src_path, Manager.FhirFormat src_format) throws IOException {
+		byte[] input;
+		try (InputStream is = new FileInputStream(new File(src_path))) {
+			input = is.readAllBytes();
+		}
+		Manager.FhirFormat outputFormat = src_format == Manager.FhirFormat.XML ? Manager.FhirFormat.JSON : Manager.FhirFormat.XML;
+		byte[] output = transformBytes(map, fhirContext, input, src_format, outputFormat, IParser.OutputStyle.PRETTY);
+		System.out.println(new String(output, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Transforms a serialized document, identical requests are answered from the result cache.
+	 */
+	public byte[] transformBytes(StructureMap map, ConvertingWorkerContext fhirContext, byte[] input, Manager.FhirFormat src_format, Manager.FhirFormat output_format, IParser.OutputStyle style) throws IOException {
+		String cacheKey = null;
+		if (resultCache != null) {
+			cacheKey = resultCache.key(map, input, output_format, style);
+			byte[] cached = resultCache.get(cacheKey);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		String mapUrl = map.getUrl();
+
+		Element src;
+		try (TransformMetrics.Stage stage = metrics.start(TransformMetrics.STAGE_PARSE, mapUrl, src_format);
+			  InputStream is = new ByteArrayInputStream(input)) {
+			src = newParser(fhirContext, src_format, trustedInput).parseSingle(is);
+			stage.success();
+		}
 
 		Element r = getTargetResourceFromStructureMap(map, fhirContext);
 		if (r == null) {
 			throw new UnprocessableEntityException("Target Structure can not be resolved from map, is the corresponding implmentation guide provided?");
 		}
 
-		StructureMapUtilities utils = new MatchboxStructureMapUtilities(fhirContext, new TransformSupportServices(fhirContext, new ArrayList<Base>()));
-		utils.transform(null, src, map, r);
-		ElementModelSorter.sort(r);
+		try (TransformMetrics.Stage stage = metrics.start(TransformMetrics.STAGE_MAP, mapUrl, src_format)) {
+			if (sectionedTransformer.supports(map)) {
+				r = sectionedTransformer.transform(fhirContext, map, src, () -> getTargetResourceFromStructureMap(map, fhirContext));
+			} else {
+				MatchboxStructureMapUtilities.transform(fhirContext, map, src, r, uuidGenerators.create(-1), profiler);
+			}
+			stage.success();
+		}
+
+		try (TransformMetrics.Stage stage = metrics.start(TransformMetrics.STAGE_SORT, mapUrl, src_format)) {
+			ElementModelSorter.sort(r);
+			stage.success();
+		}
 
 		if (r.isResource() && "Bundle".contentEquals(r.getType())) {
 			Property bundleType = r.getChildByName("type");
 			if (bundleType!=null && bundleType.getValues()!=null && "document".equals(bundleType.getValues().get(0).primitiveValue())) {
-				removeBundleEntryIds(r);
+				try (TransformMetrics.Stage stage = metrics.start(TransformMetrics.STAGE_REMOVE_IDS, mapUrl, src_format)) {
+					removeBundleEntryIds(r);
+					stage.success();
+				}
 			}
 		}
 
 		ByteArrayOutputStream os = new ByteArrayOutputStream();
 
-		try {
-			switch (src_format){
-				case XML:
-					new JsonParser(fhirContext).compose(r, os, IParser.OutputStyle.PRETTY, null);
-					break;
+		try (TransformMetrics.Stage stage = metrics.start(TransformMetrics.STAGE_COMPOSE, mapUrl, src_format)) {
+			switch (output_format){
 				case JSON:
-					new XmlParser(fhirContext).compose(r, os, IParser.OutputStyle.PRETTY, null);
+					new JsonParser(fhirContext).compose(r, os, style, null);
+					break;
+				case XML:
+					new XmlParser(fhirContext).compose(r, os, style, null);
 					break;
 			}
-
-			System.out.println(os.toString(StandardCharsets.UTF_8));
-
+			stage.success();
 		} catch(FHIRException e) {
+			os.reset();
 			os.write("Exception during Transform: ".getBytes());
 			os.write(e.getMessage().getBytes());
+			// failed results are not cached
+			cacheKey = null;
 		}
 
 		os.close();
+		byte[] retVal = os.toByteArray();
+		if (cacheKey != null) {
+			resultCache.put(cacheKey, retVal);
+		}
+		return retVal;
+	}
+
+	/**
+	 * @param trusted parse in trusted input mode (XML and JSON only)
+	 */
+	public static ParserBase newParser(IWorkerContext fhirContext, Manager.FhirFormat format, boolean trusted) {
+		switch (format) {
+			case XML:
+				return new XmlParser(fhirContext).setTrustedInput(trusted);
+			case JSON:
+				return new JsonParser(fhirContext).setTrustedInput(trusted);
+			default:
+				return Manager.makeParser(fhirContext, format);
+		}
 	}
 
 	private Element getTargetResourceFromStructureMap(StructureMap map, IWorkerContext fhirContext) {
@@ -0,0 +1,95 @@
+package hug;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.hl7.fhir.r5.elementmodel.Manager;
+
+/**
+ * Micrometer timers and counters (plus the matching {@link TransformStageEvent} JFR events) for the stages of
+ * {@link Transform#transformDoc}. Every meter is tagged with the canonical url of the map and the input format, so
+ * slow documents can be attributed to a specific StructureMap.
+ */
+public class TransformMetrics {
+
+	public static final String STAGE_PARSE = "parse";
+	public static final String STAGE_MAP = "map";
+	public static final String STAGE_SORT = "sort";
+	public static final String STAGE_REMOVE_IDS = "removeBundleEntryIds";
+	public static final String STAGE_COMPOSE = "compose";
+
+	public static final String TIMER_STAGE = "matchbox.transform.stage";
+	public static final String COUNTER_DOCUMENTS = "matchbox.transform.documents";
+
+	private static final String UNKNOWN = "unknown";
+
+	private final MeterRegistry myRegistry;
+
+	public TransformMetrics(MeterRegistry theRegistry) {
+		myRegistry = theRegistry;
+	}
+
+	/**
+	 * Starts timing a stage. The returned handle must be closed, preferably with try-with-resources; a stage that is
+	 * closed without {@link Stage#success()} having been called is recorded as failed.
+	 */
+	public Stage start(String theStage, String theMapUrl, Manager.FhirFormat theFormat) {
+		return new Stage(theStage, tagValue(theMapUrl), theFormat == null ? UNKNOWN : theFormat.name());
+	}
+
+	public void documentTransformed(String theMapUrl, Manager.FhirFormat theFormat, boolean theSuccess) {
+		Counter.builder(COUNTER_DOCUMENTS)
+			.description("Documents processed by the transformation pipeline")
+			.tag("map", tagValue(theMapUrl))
+			.tag("format", theFormat == null ? UNKNOWN : theFormat.name())
+			.tag("outcome", theSuccess ? "success" : "failure")
+			.register(myRegistry)
+			.increment();
+	}
+
+	private static String tagValue(String theValue) {
+		return theValue == null ? UNKNOWN : theValue;
+	}
+
+	public class Stage implements AutoCloseable {
+		private final String myStage;
+		private final String myMapUrl;
+		private final String myFormat;
+		private final Timer.Sample mySample;
+		private final TransformStageEvent myEvent;
+		private boolean mySuccess;
+
+		private Stage(String theStage, String theMapUrl, String theFormat) {
+			myStage = theStage;
+			myMapUrl = theMapUrl;
+			myFormat = theFormat;
+			myEvent = new TransformStageEvent();
+			myEvent.begin();
+			mySample = Timer.start(myRegistry);
+		}
+
+		public void success() {
+			mySuccess = true;
+		}
+
+		@Override
+		public void close() {
+			mySample.stop(Timer.builder(TIMER_STAGE)
+				.description("Duration of a transformation pipeline stage")
+				.tag("stage", myStage)
+				.tag("map", myMapUrl)
+				.tag("format", myFormat)
+				.tag("outcome", mySuccess ? "success" : "failure")
+				.register(myRegistry));
+
+			myEvent.end();
+			if (myEvent.shouldCommit()) {
+				myEvent.stage = myStage;
+				myEvent.mapUrl = myMapUrl;
+				myEvent.format = myFormat;
+				myEvent.failed = !mySuccess;
+				myEvent.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package hug;
+
+import ch.ahdis.matchbox.mappinglanguage.SectionSplitConfig;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings of the transformation pipeline, bound from <code>matchbox.transform</code>, see application.yaml.
+ */
+@ConfigurationProperties(prefix = "matchbox.transform")
+public class TransformProperties {
+
+	private List<SectionSplitConfig> split = new ArrayList<>();
+	// 0 uses one thread per available processor
+	private int splitThreads;
+	private SplitMemo splitMemo = new SplitMemo();
+	private ResultCache resultCache = new ResultCache();
+	private boolean trustedInput;
+	// null for random uuids
+	private Long uuidSeed;
+	private Profiler profiler = new Profiler();
+
+	public List<SectionSplitConfig> getSplit() {
+		return split;
+	}
+
+	public void setSplit(List<SectionSplitConfig> split) {
+		this.split = split;
+	}
+
+	public int getSplitThreads() {
+		return splitThreads;
+	}
+
+	public void setSplitThreads(int splitThreads) {
+		this.splitThreads = splitThreads;
+	}
+
+	public SplitMemo getSplitMemo() {
+		return splitMemo;
+	}
+
+	public void setSplitMemo(SplitMemo splitMemo) {
+		this.splitMemo = splitMemo;
+	}
+
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	public boolean isTrustedInput() {
+		return trustedInput;
+	}
+
+	public void setTrustedInput(boolean trustedInput) {
+		this.trustedInput = trustedInput;
+	}
+
+	public Long getUuidSeed() {
+		return uuidSeed;
+	}
+
+	public void setUuidSeed(Long uuidSeed) {
+		this.uuidSeed = uuidSeed;
+	}
+
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
+	public void setProfiler(Profiler profiler) {
+		this.profiler = profiler;
+	}
+
+	public static class SplitMemo {
+		// 0 disables the memo
+		private long maximumSize;
+		private Duration expireAfterAccess;
+
+		public long getMaximumSize() {
+			return maximumSize;
+		}
+
+		public void setMaximumSize(long maximumSize) {
+			this.maximumSize = maximumSize;
+		}
+
+		public Duration getExpireAfterAccess() {
+			return expireAfterAccess;
+		}
+
+		public void setExpireAfterAccess(Duration expireAfterAccess) {
+			this.expireAfterAccess = expireAfterAccess;
+		}
+	}
+
+	public static class ResultCache {
+		private long maximumBytes;
+		private Duration expireAfterAccess;
+		private File spillDirectory;
+		private long spillMaximumBytes = 1L << 30;
+
+		public long getMaximumBytes() {
+			return maximumBytes;
+		}
+
+		public void setMaximumBytes(long maximumBytes) {
+			this.maximumBytes = maximumBytes;
+		}
+
+		public Duration getExpireAfterAccess() {
+			return expireAfterAccess;
+		}
+
+		public void setExpireAfterAccess(Duration expireAfterAccess) {
+			this.expireAfterAccess = expireAfterAccess;
+		}
+
+		public File getSpillDirectory() {
+			return spillDirectory;
+		}
+
+		public void setSpillDirectory(File spillDirectory) {
+			this.spillDirectory = spillDirectory;
+		}
+
+		public long getSpillMaximumBytes() {
+			return spillMaximumBytes;
+		}
+
+		public void setSpillMaximumBytes(long spillMaximumBytes) {
+			this.spillMaximumBytes = spillMaximumBytes;
+		}
+	}
+
+	public static class Profiler {
+		private boolean enabled;
+		private File output = new File("./profile/structuremap");
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public File getOutput() {
+			return output;
+		}
+
+		public void setOutput(File output) {
+			this.output = output;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package hug;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.formats.IParser;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Content addressed cache of transformation results in front of {@link Transform#transformDoc}: byte identical
+ * documents transformed with the same map (url and version) into the same output format and style are answered
+ * without parsing or mapping.
+ * <p>
+ * The memory tier is bounded by the total size of the cached results. If a spill directory is configured, results
+ * evicted for size are written there and read back on a memory miss; the spilled files are bounded by their total
+ * size too, the oldest are deleted first. The spill directory is cleared at startup since a map can change without
+ * its version changing between two runs.
+ * <p>
+ * A result also depends on the imported maps, the ConceptMaps and the other installed resources, which a rebuilt
+ * implementation guide may change without a new map version: {@link #invalidateAll} is called after resources are
+ * installed.
+ */
+public class TransformResultCache {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(TransformResultCache.class);
+
+	public static final String CACHE_NAME = "matchbox.transform.results";
+	public static final String COUNTER_SPILL = "matchbox.transform.results.spill";
+
+	private final Cache<String, byte[]> myCache;
+	private final Path mySpillDirectory;
+	private final long myMaximumSpillBytes;
+	// spilled file -> size, oldest first; guarded by itself
+	private final Map<Path, Long> mySpilledFiles = new LinkedHashMap<>();
+	private long mySpilledBytes;
+	// part of the keys, so that results of transformations running during an install are not found afterwards
+	private final AtomicLong myGeneration = new AtomicLong();
+	private final Counter mySpillHits;
+	private final Counter mySpillMisses;
+
+	/**
+	 * @param theMaximumBytes total size of the results kept in memory
+	 * @param theExpireAfterAccess results not requested for this long are dropped, null to keep them until evicted
+	 * @param theSpillDirectory directory for results evicted from memory, null to drop them
+	 * @param theMaximumSpillBytes total size of the results kept in the spill directory
+	 */
+	public TransformResultCache(long theMaximumBytes, Duration theExpireAfterAccess, File theSpillDirectory, long theMaximumSpillBytes, MeterRegistry theRegistry) {
+		mySpillDirectory = theSpillDirectory != null ? prepareSpillDirectory(theSpillDirectory.toPath()) : null;
+		myMaximumSpillBytes = theMaximumSpillBytes;
+		Caffeine<String, byte[]> builder = Caffeine.newBuilder()
+			.maximumWeight(theMaximumBytes)
+			.weigher((String key, byte[] value) -> value.length)
+			.recordStats();
+		if (theExpireAfterAccess != null) {
+			builder.expireAfterAccess(theExpireAfterAccess);
+		}
+		if (mySpillDirectory != null) {
+			builder.removalListener((String key, byte[] value, RemovalCause cause) -> {
+				if (cause == RemovalCause.SIZE && key != null && value != null) {
+					spill(key, value);
+				}
+			});
+		}
+		myCache = builder.build();
+
+		CaffeineCacheMetrics.monitor(theRegistry, myCache, CACHE_NAME);
+		mySpillHits = Counter.builder(COUNTER_SPILL).tag("result", "hit").description("Results read back from the spill directory").register(theRegistry);
+		mySpillMisses = Counter.builder(COUNTER_SPILL).tag("result", "miss").description("Memory misses not found in the spill directory").register(theRegistry);
+	}
+
+	/**
+	 * @return the key of a transformation: map url and version, SHA-256 of the input, output format and style
+	 */
+	public String key(StructureMap theMap, byte[] theInput, Manager.FhirFormat theOutputFormat, IParser.OutputStyle theStyle) {
+		return myGeneration.get() + "|" + theMap.getUrl() + "|" + theMap.getVersion() + "|" + sha256(theInput) + "|" + theOutputFormat + "|" + theStyle;
+	}
+
+	/**
+	 * @return the cached result or null; the array must not be modified
+	 */
+	public byte[] get(String theKey) {
+		byte[] retVal = myCache.getIfPresent(theKey);
+		if (retVal == null && mySpillDirectory != null) {
+			retVal = unspill(theKey);
+			if (retVal != null) {
+				mySpillHits.increment();
+				myCache.put(theKey, retVal);
+			} else {
+				mySpillMisses.increment();
+			}
+		}
+		return retVal;
+	}
+
+	public void put(String theKey, byte[] theResult) {
+		myCache.put(theKey, theResult);
+	}
+
+	/**
+	 * Drops all results, in memory and spilled; the keys made before are not used again.
+	 */
+	public void invalidateAll() {
+		myGeneration.incrementAndGet();
+		// removed explicitly, not spilled
+		myCache.invalidateAll();
+		if (mySpillDirectory != null) {
+			synchronized (mySpilledFiles) {
+				for (Path next : mySpilledFiles.keySet()) {
+					deleteSpilled(next);
+				}
+				mySpilledFiles.clear();
+				mySpilledBytes = 0;
+			}
+		}
+	}
+
+	private void spill(String theKey, byte[] theValue) {
+		if (theValue.length > myMaximumSpillBytes) {
+			return;
+		}
+		Path file = spillFile(theKey);
+		synchronized (mySpilledFiles) {
+			try {
+				// written under a temporary name, so that a concurrent read never sees a partial file
+				Path tmp = Files.createTempFile(mySpillDirectory, "spill", ".tmp");
+				Files.write(tmp, theValue);
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				ourLog.warn("Unable to spill transformation result to {}: {}", file, e.getMessage());
+				return;
+			}
+			Long replaced = mySpilledFiles.remove(file);
+			mySpilledBytes += theValue.length - (replaced != null ? replaced : 0);
+			mySpilledFiles.put(file, (long) theValue.length);
+			Iterator<Map.Entry<Path, Long>> oldest = mySpilledFiles.entrySet().iterator();
+			while (mySpilledBytes > myMaximumSpillBytes && oldest.hasNext()) {
+				Map.Entry<Path, Long> next = oldest.next();
+				deleteSpilled(next.getKey());
+				mySpilledBytes -= next.getValue();
+				oldest.remove();
+			}
+		}
+	}
+
+	private static void deleteSpilled(Path theFile) {
+		try {
+			Files.deleteIfExists(theFile);
+		} catch (IOException e) {
+			ourLog.warn("Unable to delete spilled transformation result {}: {}", theFile, e.getMessage());
+		}
+	}
+
+	private byte[] unspill(String theKey) {
+		Path file = spillFile(theKey);
+		synchronized (mySpilledFiles) {
+			Long size = mySpilledFiles.remove(file);
+			if (size == null) {
+				return null;
+			}
+			mySpilledBytes -= size;
+			try {
+				return Files.readAllBytes(file);
+			} catch (IOException e) {
+				ourLog.warn("Unable to read spilled transformation result {}: {}", file, e.getMessage());
+				return null;
+			} finally {
+				// back in memory now, it is written again when evicted
+				deleteSpilled(file);
+			}
+		}
+	}
+
+	private Path spillFile(String theKey) {
+		return mySpillDirectory.resolve(sha256(theKey.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static Path prepareSpillDirectory(Path theDirectory) {
+		try {
+			Files.createDirectories(theDirectory);
+			try (Stream<Path> files = Files.list(theDirectory)) {
+				files.forEach(f -> f.toFile().delete());
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to prepare spill directory " + theDirectory, e);
+		}
+		return theDirectory;
+	}
+
+	private static String sha256(byte[] theBytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(theBytes);
+			StringBuilder retVal = new StringBuilder(digest.length * 2);
+			for (byte next : digest) {
+				retVal.append(Character.forDigit((next >> 4) & 0xF, 16)).append(Character.forDigit(next & 0xF, 16));
+			}
+			return retVal.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
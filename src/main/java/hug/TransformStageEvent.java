@@ -0,0 +1,32 @@
+package hug;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event emitted for each stage of a document transformation, so that a flight recording can be correlated
+ * with the Micrometer timers published by {@link TransformMetrics}.
+ */
+@Name("matchbox.TransformStage")
+@Label("Transform Stage")
+@Category({"Matchbox", "Transform"})
+@Description("Duration of a single stage of a StructureMap transformation")
+@StackTrace(false)
+public class TransformStageEvent extends Event {
+
+	@Label("Stage")
+	String stage;
+
+	@Label("Map URL")
+	String mapUrl;
+
+	@Label("Input Format")
+	String format;
+
+	@Label("Failed")
+	boolean failed;
+}
@@ -1,14 +1,13 @@
 package org.hl7.fhir.common.hapi.validation.validator;
 
 import ca.uhn.fhir.i18n.Msg;
-import ca.uhn.fhir.jpa.validation.JpaValidationSupportChain;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import org.apache.commons.lang3.NotImplementedException;
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.fhir.ucum.UcumService;
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
 import org.hl7.fhir.exceptions.TerminologyServiceException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r5.context.IWorkerContext;
@@ -28,39 +27,51 @@ import org.hl7.fhir.utilities.validation.ValidationOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 //!\\ Only work with the R4 fhir version
 
 public class VersionSpecificWorkerContextWrapper extends I18nBase implements IWorkerContext {
 	private static final Logger ourLog = LoggerFactory.getLogger(VersionSpecificWorkerContextWrapper.class);
-	private final JpaValidationSupportChain myValidationSupport;
+	private final ValidationSupportChain myValidationSupport;
 	private final IVersionTypeConverter myModelConverter;
-	private final LoadingCache<ResourceKey, IBaseResource> myFetchResourceCache;
+	public static final Duration DEFAULT_NEGATIVE_CACHE_TTL = Duration.ofMinutes(1);
+	public static final long DEFAULT_NEGATIVE_CACHE_SIZE = 10000;
 
-	public VersionSpecificWorkerContextWrapper(JpaValidationSupportChain theValidationSupport, IVersionTypeConverter theModelConverter) {
-		myValidationSupport = theValidationSupport;
-		myModelConverter = theModelConverter;
-
-		myFetchResourceCache = Caffeine.newBuilder()
-			.expireAfterWrite(1000, TimeUnit.MILLISECONDS)
-			.maximumSize(10000)
-			.build(key -> {
-
-				// StructureDefinition or ValueSet
-				String fetchResourceName = key.getResourceName();
+	// two level index: R5 resource class, then canonical url; no key object is created per lookup
+	private final ClassValue<TypeCache> myFetchResourceCaches;
+	// the caches created by myFetchResourceCaches, which can not be iterated
+	private final Set<TypeCache> myTypeCaches = ConcurrentHashMap.newKeySet();
+	private final LongAdder myNegativeHits = new LongAdder();
+	private final LongAdder myNegativeMisses = new LongAdder();
 
-				Class<? extends IBaseResource> fetchResourceType = myValidationSupport.getFhirContext()
-					.getResourceDefinition(fetchResourceName).getImplementingClass();
+	public VersionSpecificWorkerContextWrapper(ValidationSupportChain theValidationSupport, IVersionTypeConverter theModelConverter) {
+		this(theValidationSupport, theModelConverter, DEFAULT_NEGATIVE_CACHE_TTL, DEFAULT_NEGATIVE_CACHE_SIZE);
+	}
 
-				IBaseResource fetched = myValidationSupport.fetchResource(fetchResourceType, key.getUri());
+	/**
+	 * @param theNegativeCacheTtl how long an unknown canonical is remembered as unknown
+	 * @param theNegativeCacheSize maximum number of unknown canonicals remembered per resource type
+	 */
+	public VersionSpecificWorkerContextWrapper(ValidationSupportChain theValidationSupport, IVersionTypeConverter theModelConverter, Duration theNegativeCacheTtl, long theNegativeCacheSize) {
+		myValidationSupport = theValidationSupport;
+		myModelConverter = theModelConverter;
 
-				return myModelConverter.toCanonical(fetched);
-			});
+		myFetchResourceCaches = new ClassValue<TypeCache>() {
+			@Override
+			protected TypeCache computeValue(Class<?> theType) {
+				TypeCache retVal = new TypeCache(theType.getSimpleName(), theNegativeCacheTtl, theNegativeCacheSize);
+				myTypeCaches.add(retVal);
+				return retVal;
+			}
+		};
 
 		setValidationMessageLanguage(getLocale());
 	}
@@ -79,13 +90,48 @@ public class VersionSpecificWorkerContextWrapper extends I18nBase implements IWo
 	// Used for conversion
 	@Override
 	public <T extends Resource> T fetchResource(Class<T> class_, String uri) {
-		ResourceKey key = new ResourceKey(class_.getSimpleName(), uri);
+		if (uri == null) {
+			return null;
+		}
+		TypeCache cache = myFetchResourceCaches.get(class_);
+		if (cache.myNotFound.getIfPresent(uri) != null) {
+			myNegativeHits.increment();
+			return null;
+		}
 		@SuppressWarnings("unchecked")
-		T retVal = (T) myFetchResourceCache.get(key);
+		T retVal = (T) cache.myFound.get(uri);
+		if (retVal == null) {
+			myNegativeMisses.increment();
+			cache.myNotFound.put(uri, Boolean.TRUE);
+		}
 
 		return retVal;
 	}
 
+	/**
+	 * Forgets the fetched resources and the canonicals not found, called after resources have been installed so that
+	 * they are visible at once and not only when the negative cache expires.
+	 */
+	public void invalidateFetchCaches() {
+		for (TypeCache next : myTypeCaches) {
+			next.invalidateAll();
+		}
+	}
+
+	/**
+	 * @return number of lookups answered as not found by the negative cache
+	 */
+	public long getNegativeCacheHits() {
+		return myNegativeHits.sum();
+	}
+
+	/**
+	 * @return number of lookups that found nothing in the validation support chain
+	 */
+	public long getNegativeCacheMisses() {
+		return myNegativeMisses.sum();
+	}
+
 	// Used for conversion
 	@Override
 	public String getOverrideVersionNs() {
@@ -136,53 +182,44 @@ public class VersionSpecificWorkerContextWrapper extends I18nBase implements IWo
 
 	}
 
-	private static class ResourceKey {
-		private final int myHashCode;
+	/**
+	 * Fetched resources of one type by canonical url.
+	 */
+	private class TypeCache {
 		private final String myResourceName;
-		private final String myUri;
+		private final LoadingCache<String, IBaseResource> myFound;
+		// lookups that found nothing; Caffeine does not store the null values of myFound
+		private final Cache<String, Boolean> myNotFound;
+		private volatile Class<? extends IBaseResource> myFetchResourceType;
 
-		private ResourceKey(String theResourceName, String theUri) {
+		private TypeCache(String theResourceName, Duration theNegativeCacheTtl, long theNegativeCacheSize) {
 			myResourceName = theResourceName;
-			myUri = theUri;
-			myHashCode = new HashCodeBuilder(17, 37)
-				.append(myResourceName)
-				.append(myUri)
-				.toHashCode();
+			myFound = Caffeine.newBuilder()
+				.expireAfterWrite(1000, TimeUnit.MILLISECONDS)
+				.maximumSize(10000)
+				.build(this::load);
+			myNotFound = Caffeine.newBuilder()
+				.expireAfterWrite(theNegativeCacheTtl)
+				.maximumSize(theNegativeCacheSize)
+				.build();
 		}
 
-		// Used
-		@Override
-		public boolean equals(Object theO) {
-			if (this == theO) {
-				return true;
-			}
-
-			if (theO == null || getClass() != theO.getClass()) {
-				return false;
-			}
-
-			ResourceKey that = (ResourceKey) theO;
-
-			return new EqualsBuilder()
-				.append(myResourceName, that.myResourceName)
-				.append(myUri, that.myUri)
-				.isEquals();
+		private void invalidateAll() {
+			myNotFound.invalidateAll();
+			myFound.invalidateAll();
 		}
 
-		// Used
-		public String getResourceName() {
-			return myResourceName;
-		}
+		private IBaseResource load(String theUri) {
+			// StructureDefinition or ValueSet
+			Class<? extends IBaseResource> fetchResourceType = myFetchResourceType;
+			if (fetchResourceType == null) {
+				fetchResourceType = myValidationSupport.getFhirContext().getResourceDefinition(myResourceName).getImplementingClass();
+				myFetchResourceType = fetchResourceType;
+			}
 
-		// Used
-		public String getUri() {
-			return myUri;
-		}
+			IBaseResource fetched = myValidationSupport.fetchResource(fetchResourceType, theUri);
 
-		// Used
-		@Override
-		public int hashCode() {
-			return myHashCode;
+			return myModelConverter.toCanonical(fetched);
 		}
 	}
 
@@ -52,7 +52,6 @@ import org.hl7.fhir.r5.formats.IParser.OutputStyle;
 import org.hl7.fhir.r5.formats.JsonCreator;
 import org.hl7.fhir.r5.formats.JsonCreatorCanonical;
 import org.hl7.fhir.r5.formats.JsonCreatorGson;
-import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
 import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.r5.model.StructureDefinition.TypeDerivationRule;
 import org.hl7.fhir.r5.utils.FHIRPathEngine;
@@ -80,6 +79,9 @@ public class JsonParser extends ParserBase {
 	private boolean allowComments;
 
 	private ProfileUtilities profileUtilities;
+	private final ParserPropertyCache propertyCache = new ParserPropertyCache();
+	private boolean trackElementPaths = true;
+	private boolean trustedInput;
 
 	public JsonParser(IWorkerContext context) {
 		super(context);
@@ -87,6 +89,34 @@ public class JsonParser extends ParserBase {
 		this.profileUtilities = new ProfileUtilities(this.context, null, null, new FHIRPathEngine(context));
 	}
 
+	/**
+	 * @param trackElementPaths false to leave {@link Element#getPath()} empty below the root, for callers that never
+	 *                          read it; saves building a path string for every node
+	 */
+	public JsonParser setTrackElementPaths(boolean trackElementPaths) {
+		this.trackElementPaths = trackElementPaths;
+		return this;
+	}
+
+	/**
+	 * Trusted input mode for production conversion of documents that are known to be valid: the json is read with
+	 * the plain gson parser without line/column tracking (not even with {@link ValidationPolicy#EVERYTHING}),
+	 * fhir_comments are not attached to the elements and element paths are not built (see
+	 * {@link #setTrackElementPaths}). Errors are still reported.
+	 */
+	public JsonParser setTrustedInput(boolean trustedInput) {
+		this.trustedInput = trustedInput;
+		return this;
+	}
+
+	/**
+	 * @return whether element paths are built, the setting of {@link #setTrackElementPaths} unless in trusted input
+	 * mode, so that it applies again when the mode is switched off
+	 */
+	private boolean tracksElementPaths() {
+		return trackElementPaths && !trustedInput;
+	}
+
 	//Fixed for https://github.com/ahdis/matchbox/issues/31
 	@Override
 	protected StructureDefinition getDefinition(int line, int col, String name) throws FHIRFormatError {
@@ -109,7 +139,12 @@ public class JsonParser extends ParserBase {
 		List<NamedElement> res = new ArrayList<>();
 		map = new IdentityHashMap<JsonElement, LocationData>();
 		String source = TextFile.streamToString(stream);
-		if (policy == ValidationPolicy.EVERYTHING) {
+		if (trustedInput) {
+			Element e = parse(com.google.gson.JsonParser.parseString(source).getAsJsonObject());
+			if (e != null) {
+				res.add(new NamedElement(null, e));
+			}
+		} else if (policy == ValidationPolicy.EVERYTHING) {
 			JsonObject obj = null;
 			try {
 				obj = JsonTrackingParser.parse(source, map, false, allowComments);
@@ -138,8 +173,8 @@ public class JsonParser extends ParserBase {
 			logError(line(object), col(object), "$", IssueType.INVALID, context.formatMessage(I18nConstants.UNABLE_TO_FIND_RESOURCETYPE_PROPERTY), IssueSeverity.FATAL);
 			return null;
 		} else {
-			String name = rt.getAsString();
-			String path = name;
+			String name = propertyCache.intern(rt.getAsString());
+			LazyPath path = LazyPath.root(name);
 
 			StructureDefinition sd = getDefinition(line(object), col(object), name);
 			if (sd == null)
@@ -151,13 +186,14 @@ public class JsonParser extends ParserBase {
 			result.setPath(result.fhirType());
 			parseChildren(path, object, result, true);
 			result.numberChildren();
+			ParserPropertyCache.compact(result);
 			return result;
 		}
 	}
 
-	private void parseChildren(String path, JsonObject object, Element element, boolean hasResourceType) throws FHIRException {
+	private void parseChildren(LazyPath path, JsonObject object, Element element, boolean hasResourceType) throws FHIRException {
 		reapComments(object, element);
-		List<Property> properties = element.getProperty().getChildProperties(element.getName(), null);
+		List<Property> properties = propertyCache.getChildProperties(element.getProperty(), element.getName(), null);
 		Set<String> processed = new HashSet<String>();
 		if (hasResourceType)
 			processed.add("resourceType");
@@ -170,14 +206,17 @@ public class JsonParser extends ParserBase {
 	}
 
 	public void parseChildItem(String path, JsonObject object, Element context, Set<String> processed, Property property) {
+		parseChildItem(LazyPath.root(path), object, context, processed, property);
+	}
+
+	private void parseChildItem(LazyPath path, JsonObject object, Element context, Set<String> processed, Property property) {
 		if (property.isChoice() || property.getDefinition().getPath().endsWith("data[x]")) {
-			for (TypeRefComponent type : property.getDefinition().getType()) {
-				String eName = property.getName().substring(0, property.getName().length() - 3) + Utilities.capitalize(type.getWorkingCode());
-				if (!isPrimitive(type.getWorkingCode()) && object.has(eName)) {
-					parseChildComplex(path, object, context, processed, property, eName);
+			for (ParserPropertyCache.ChoiceName choice : propertyCache.getChoiceNames(property)) {
+				if (!isPrimitive(choice.typeCode) && object.has(choice.name)) {
+					parseChildComplex(path, object, context, processed, property, choice.name);
 					break;
-				} else if (isPrimitive(type.getWorkingCode()) && (object.has(eName) || object.has("_" + eName))) {
-					parseChildPrimitive(object, context, processed, property, path, eName);
+				} else if (isPrimitive(choice.typeCode) && (object.has(choice.name) || object.has(choice.underscoreName))) {
+					parseChildPrimitive(object, context, processed, property, path, choice.name);
 					break;
 				}
 			}
@@ -188,24 +227,24 @@ public class JsonParser extends ParserBase {
 		}
 	}
 
-	private void parseChildComplex(String path, JsonObject object, Element element, Set<String> processed, Property property, String name) throws FHIRException {
+	private void parseChildComplex(LazyPath path, JsonObject object, Element element, Set<String> processed, Property property, String name) throws FHIRException {
 		processed.add(name);
-		String npath = path + "." + property.getName();
-		String fpath = element.getPath() + "." + property.getName();
+		LazyPath npath = path.child(".", property.getName());
+		String fpath = tracksElementPaths() ? element.getPath() + "." + property.getName() : null;
 		JsonElement e = object.get(name);
 		if (property.isList() && (e instanceof JsonArray)) {
 			JsonArray arr = (JsonArray) e;
 			if (arr.size() == 0) {
-				logError(line(e), col(e), npath, IssueType.INVALID, context.formatMessage(I18nConstants.ARRAY_CANNOT_BE_EMPTY), IssueSeverity.ERROR);
+				logError(line(e), col(e), npath.toString(), IssueType.INVALID, context.formatMessage(I18nConstants.ARRAY_CANNOT_BE_EMPTY), IssueSeverity.ERROR);
 			}
 			int c = 0;
 			for (JsonElement am : arr) {
-				parseChildComplexInstance(npath + "[" + c + "]", fpath + "[" + c + "]", object, element, property, name, am);
+				parseChildComplexInstance(npath.index(c), fpath != null ? fpath + "[" + c + "]" : null, object, element, property, name, am);
 				c++;
 			}
 		} else {
 			if (property.isList()) {
-				logError(line(e), col(e), npath, IssueType.INVALID, context.formatMessage(I18nConstants.THIS_PROPERTY_MUST_BE_AN_ARRAY_NOT_, describeType(e), name, path), IssueSeverity.ERROR);
+				logError(line(e), col(e), npath.toString(), IssueType.INVALID, context.formatMessage(I18nConstants.THIS_PROPERTY_MUST_BE_AN_ARRAY_NOT_, describeType(e), name, path.toString()), IssueSeverity.ERROR);
 			}
 			parseChildComplexInstance(npath, fpath, object, element, property, name, e);
 		}
@@ -223,18 +262,20 @@ public class JsonParser extends ParserBase {
 		return null;
 	}
 
-	private void parseChildComplexInstance(String npath, String fpath, JsonObject object, Element element, Property property, String name, JsonElement e) throws FHIRException {
+	private void parseChildComplexInstance(LazyPath npath, String fpath, JsonObject object, Element element, Property property, String name, JsonElement e) throws FHIRException {
 		if (e instanceof JsonObject) {
 			JsonObject child = (JsonObject) e;
 			Element n = new Element(name, property).markLocation(line(child), col(child));
-			n.setPath(fpath);
+			if (fpath != null) {
+				n.setPath(fpath);
+			}
 			element.getChildren().add(n);
 			if (property.isResource())
 				parseResource(npath, child, n, property);
 			else
 				parseChildren(npath, child, n, false);
 		} else
-			logError(line(e), col(e), npath, IssueType.INVALID, context.formatMessage(I18nConstants.THIS_PROPERTY_MUST_BE__NOT_, (property.isList() ? "an Array" : "an Object"), describe(e), name, npath), IssueSeverity.ERROR);
+			logError(line(e), col(e), npath.toString(), IssueType.INVALID, context.formatMessage(I18nConstants.THIS_PROPERTY_MUST_BE__NOT_, (property.isList() ? "an Array" : "an Object"), describe(e), name, npath.toString()), IssueSeverity.ERROR);
 	}
 
 	private String describe(JsonElement e) {
@@ -250,9 +291,9 @@ public class JsonParser extends ParserBase {
 		return "a primitive property";
 	}
 
-	private void parseChildPrimitive(JsonObject object, Element element, Set<String> processed, Property property, String path, String name) throws FHIRException {
-		String npath = path + "." + property.getName();
-		String fpath = element.getPath() + "." + property.getName();
+	private void parseChildPrimitive(JsonObject object, Element element, Set<String> processed, Property property, LazyPath path, String name) throws FHIRException {
+		LazyPath npath = path.child(".", property.getName());
+		String fpath = tracksElementPaths() ? element.getPath() + "." + property.getName() : null;
 		processed.add(name);
 		processed.add("_" + name);
 		JsonElement main = object.has(name) ? object.get(name) : null;
@@ -261,11 +302,11 @@ public class JsonParser extends ParserBase {
 			if (property.isList()) {
 				boolean ok = true;
 				if (!(main == null || main instanceof JsonArray)) {
-					logError(line(main), col(main), npath, IssueType.INVALID, context.formatMessage(I18nConstants.THIS_PROPERTY_MUST_BE_AN_ARRAY_NOT_, describe(main), name, path), IssueSeverity.ERROR);
+					logError(line(main), col(main), npath.toString(), IssueType.INVALID, context.formatMessage(I18nConstants.THIS_PROPERTY_MUST_BE_AN_ARRAY_NOT_, describe(main), name, path.toString()), IssueSeverity.ERROR);
 					ok = false;
 				}
 				if (!(fork == null || fork instanceof JsonArray)) {
-					logError(line(fork), col(fork), npath, IssueType.INVALID, context.formatMessage(I18nConstants.THIS_BASE_PROPERTY_MUST_BE_AN_ARRAY_NOT_, describe(main), name, path), IssueSeverity.ERROR);
+					logError(line(fork), col(fork), npath.toString(), IssueType.INVALID, context.formatMessage(I18nConstants.THIS_BASE_PROPERTY_MUST_BE_AN_ARRAY_NOT_, describe(main), name, path.toString()), IssueSeverity.ERROR);
 					ok = false;
 				}
 				if (ok) {
@@ -291,15 +332,17 @@ public class JsonParser extends ParserBase {
 		return arr == null ? 0 : arr.size();
 	}
 
-	private void parseChildPrimitiveInstance(Element element, Property property, String name, String npath, String fpath, JsonElement main, JsonElement fork) throws FHIRException {
+	private void parseChildPrimitiveInstance(Element element, Property property, String name, LazyPath npath, String fpath, JsonElement main, JsonElement fork) throws FHIRException {
 		if (main != null && !(main instanceof JsonPrimitive))
-			logError(line(main), col(main), npath, IssueType.INVALID, context.formatMessage(
-				I18nConstants.THIS_PROPERTY_MUST_BE_AN_SIMPLE_VALUE_NOT_, describe(main), name, npath), IssueSeverity.ERROR);
+			logError(line(main), col(main), npath.toString(), IssueType.INVALID, context.formatMessage(
+				I18nConstants.THIS_PROPERTY_MUST_BE_AN_SIMPLE_VALUE_NOT_, describe(main), name, npath.toString()), IssueSeverity.ERROR);
 		else if (fork != null && !(fork instanceof JsonObject))
-			logError(line(fork), col(fork), npath, IssueType.INVALID, context.formatMessage(I18nConstants.THIS_PROPERTY_MUST_BE_AN_OBJECT_NOT_, describe(fork), name, npath), IssueSeverity.ERROR);
+			logError(line(fork), col(fork), npath.toString(), IssueType.INVALID, context.formatMessage(I18nConstants.THIS_PROPERTY_MUST_BE_AN_OBJECT_NOT_, describe(fork), name, npath.toString()), IssueSeverity.ERROR);
 		else {
 			Element n = new Element(name, property).markLocation(line(main != null ? main : fork), col(main != null ? main : fork));
-			n.setPath(fpath);
+			if (fpath != null) {
+				n.setPath(fpath);
+			}
 			element.getChildren().add(n);
 			if (main != null) {
 				JsonPrimitive p = (JsonPrimitive) main;
@@ -313,7 +356,7 @@ public class JsonParser extends ParserBase {
 					try {
 						n.setXhtml(new XhtmlParser().setValidatorMode(policy == ValidationPolicy.EVERYTHING).parse(n.getValue(), null).getDocumentElement());
 					} catch (Exception e) {
-						logError(line(main), col(main), npath, IssueType.INVALID, context.formatMessage(I18nConstants.ERROR_PARSING_XHTML_, e.getMessage()), IssueSeverity.ERROR);
+						logError(line(main), col(main), npath.toString(), IssueType.INVALID, context.formatMessage(I18nConstants.ERROR_PARSING_XHTML_, e.getMessage()), IssueSeverity.ERROR);
 					}
 				}
 			}
@@ -325,17 +368,17 @@ public class JsonParser extends ParserBase {
 	}
 
 
-	private void parseResource(String npath, JsonObject res, Element parent, Property elementProperty) throws FHIRException {
+	private void parseResource(LazyPath npath, JsonObject res, Element parent, Property elementProperty) throws FHIRException {
 		JsonElement rt = res.get("resourceType");
 		if (rt == null) {
-			logError(line(res), col(res), npath, IssueType.INVALID, context.formatMessage(I18nConstants.UNABLE_TO_FIND_RESOURCETYPE_PROPERTY), IssueSeverity.FATAL);
+			logError(line(res), col(res), npath.toString(), IssueType.INVALID, context.formatMessage(I18nConstants.UNABLE_TO_FIND_RESOURCETYPE_PROPERTY), IssueSeverity.FATAL);
 		} else {
 			String name = rt.getAsString();
 			StructureDefinition sd = context.fetchResource(StructureDefinition.class, ProfileUtilities.sdNs(name, context.getOverrideVersionNs()));
 			if (sd == null) {
-				logError(line(res), col(res), npath, IssueType.INVALID, context.formatMessage(I18nConstants.CONTAINED_RESOURCE_DOES_NOT_APPEAR_TO_BE_A_FHIR_RESOURCE_UNKNOWN_NAME_, name), IssueSeverity.FATAL);
+				logError(line(res), col(res), npath.toString(), IssueType.INVALID, context.formatMessage(I18nConstants.CONTAINED_RESOURCE_DOES_NOT_APPEAR_TO_BE_A_FHIR_RESOURCE_UNKNOWN_NAME_, name), IssueSeverity.FATAL);
 			} else {
-				parent.updateProperty(new Property(context, sd.getSnapshot().getElement().get(0), sd, this.profileUtilities), SpecialElement.fromProperty(parent.getProperty()), elementProperty);
+				parent.updateProperty(propertyCache.getResourceProperty(sd, () -> new Property(context, sd.getSnapshot().getElement().get(0), sd, this.profileUtilities)), SpecialElement.fromProperty(parent.getProperty()), elementProperty);
 				parent.setType(name);
 				parseChildren(npath, res, parent, true);
 			}
@@ -343,7 +386,7 @@ public class JsonParser extends ParserBase {
 	}
 
 	private void reapComments(JsonObject object, Element context) {
-		if (object.has("fhir_comments")) {
+		if (!trustedInput && object.has("fhir_comments")) {
 			JsonArray arr = object.getAsJsonArray("fhir_comments");
 			for (JsonElement e : arr) {
 				context.getComments().add(e.getAsString());
@@ -352,14 +395,14 @@ public class JsonParser extends ParserBase {
 	}
 
 	private int line(JsonElement e) {
-		if (map == null || !map.containsKey(e))
+		if (trustedInput || map == null || !map.containsKey(e))
 			return -1;
 		else
 			return map.get(e).getLine();
 	}
 
 	private int col(JsonElement e) {
-		if (map == null || !map.containsKey(e))
+		if (trustedInput || map == null || !map.containsKey(e))
 			return -1;
 		else
 			return map.get(e).getCol();
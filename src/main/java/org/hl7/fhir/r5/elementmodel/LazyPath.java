@@ -0,0 +1,76 @@
+package org.hl7.fhir.r5.elementmodel;
+
+/**
+ * Location path of a node while parsing, kept as parent pointer plus segment. The parsers create one per node but
+ * the string is only built when it is requested, i.e. when an error is logged.
+ */
+final class LazyPath {
+
+	private static final int NO_INDEX = -1;
+
+	private final LazyPath parent;
+	private final String separator;
+	private final String prefix;
+	private final String name;
+	private final int index;
+	private String value;
+
+	private LazyPath(LazyPath parent, String separator, String prefix, String name, int index) {
+		this.parent = parent;
+		this.separator = separator;
+		this.prefix = prefix;
+		this.name = name;
+		this.index = index;
+	}
+
+	static LazyPath root(String path) {
+		LazyPath retVal = new LazyPath(null, null, null, null, NO_INDEX);
+		retVal.value = path;
+		return retVal;
+	}
+
+	/**
+	 * @return the path of a child, e.g. <code>.name</code> or <code>/v3:name</code>
+	 */
+	LazyPath child(String separator, String prefix, String name) {
+		return new LazyPath(this, separator, prefix, name, NO_INDEX);
+	}
+
+	LazyPath child(String separator, String name) {
+		return new LazyPath(this, separator, null, name, NO_INDEX);
+	}
+
+	/**
+	 * @return the path of an item of a repeating element, i.e. this path followed by <code>[index]</code>
+	 */
+	LazyPath index(int index) {
+		return new LazyPath(this, null, null, null, index);
+	}
+
+	@Override
+	public String toString() {
+		if (value == null) {
+			StringBuilder b = new StringBuilder();
+			append(b);
+			value = b.toString();
+		}
+		return value;
+	}
+
+	private void append(StringBuilder b) {
+		if (value != null) {
+			b.append(value);
+			return;
+		}
+		parent.append(b);
+		if (index != NO_INDEX) {
+			b.append('[').append(index).append(']');
+		} else {
+			b.append(separator);
+			if (prefix != null) {
+				b.append(prefix);
+			}
+			b.append(name);
+		}
+	}
+}
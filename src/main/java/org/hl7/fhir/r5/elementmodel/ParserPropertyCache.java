@@ -0,0 +1,123 @@
+package org.hl7.fhir.r5.elementmodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.model.ElementDefinition.TypeRefComponent;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.Utilities;
+
+/**
+ * Caches of the {@link XmlParser} and {@link JsonParser} for one parse. Without them every node of the document
+ * creates its own child {@link Property} objects, name strings and sorted property lists; with them all nodes with the
+ * same definition share them, which keeps large documents (many entries, repeating CDA sections) small on the heap.
+ * <p>
+ * The nodes themselves keep the {@link Element} layout of the core library, which the engine, the validator and the
+ * renderers use directly: the parsers give them interned names, shared Property objects and lazily built paths
+ * ({@link LazyPath}), and {@link #compact} trims their children lists once the tree is complete.
+ * <p>
+ * The cached Property objects are only read by the parsers and the elements, never modified. Not thread safe, a
+ * parser instance is used by one thread.
+ */
+class ParserPropertyCache {
+
+	private static final String NO_TYPE = "";
+
+	// property -> element name -> stated type -> child properties
+	private final Map<Property, Map<String, Map<String, List<Property>>>> myChildProperties = new IdentityHashMap<>();
+	private final Map<List<Property>, List<Property>> mySortedByLongestName = new IdentityHashMap<>();
+	private final Map<StructureDefinition, Property> myResourceProperties = new IdentityHashMap<>();
+	private final Map<Property, List<ChoiceName>> myChoiceNames = new IdentityHashMap<>();
+	private final Map<String, String> myNames = new HashMap<>();
+
+	List<Property> getChildProperties(Property theProperty, String theElementName, String theStatedType) throws FHIRException {
+		Map<String, List<Property>> byType = myChildProperties
+			.computeIfAbsent(theProperty, p -> new HashMap<>())
+			.computeIfAbsent(theElementName, n -> new HashMap<>());
+		String typeKey = theStatedType != null ? theStatedType : NO_TYPE;
+		List<Property> retVal = byType.get(typeKey);
+		if (retVal == null) {
+			retVal = Collections.unmodifiableList(theProperty.getChildProperties(theElementName, theStatedType));
+			byType.put(typeKey, retVal);
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return the properties sorted by the length of their name, longest first; the argument has to come from
+	 * {@link #getChildProperties}
+	 */
+	List<Property> sortedByLongestName(List<Property> theProperties) {
+		return mySortedByLongestName.computeIfAbsent(theProperties, p -> {
+			List<Property> retVal = new ArrayList<>(p);
+			retVal.sort((o1, o2) -> o2.getName().length() - o1.getName().length());
+			return retVal;
+		});
+	}
+
+	/**
+	 * @return the root property of the resources of the StructureDefinition, shared by all (contained, entry)
+	 * resources of this type in the document
+	 */
+	Property getResourceProperty(StructureDefinition theDefinition, Supplier<Property> theFactory) {
+		return myResourceProperties.computeIfAbsent(theDefinition, d -> theFactory.get());
+	}
+
+	/**
+	 * @return the json names of a choice property, e.g. valueString, valueQuantity for value[x], in type order
+	 */
+	List<ChoiceName> getChoiceNames(Property theProperty) {
+		return myChoiceNames.computeIfAbsent(theProperty, p -> {
+			String prefix = p.getName().substring(0, p.getName().length() - 3);
+			List<ChoiceName> retVal = new ArrayList<>();
+			for (TypeRefComponent type : p.getDefinition().getType()) {
+				String name = intern(prefix + Utilities.capitalize(type.getWorkingCode()));
+				retVal.add(new ChoiceName(name, type.getWorkingCode()));
+			}
+			return retVal;
+		});
+	}
+
+	/**
+	 * @return a shared instance of the name
+	 */
+	String intern(String theName) {
+		String retVal = myNames.putIfAbsent(theName, theName);
+		return retVal != null ? retVal : theName;
+	}
+
+	/**
+	 * Trims the children lists of the element and its descendants to their size. The lists grow while the parser adds
+	 * the children; most nodes have one or two children, so the spare capacity is the larger part of the lists.
+	 */
+	static void compact(Element theElement) {
+		if (!theElement.hasChildren()) {
+			return;
+		}
+		List<Element> children = theElement.getChildren();
+		if (children instanceof ArrayList) {
+			((ArrayList<Element>) children).trimToSize();
+		}
+		for (Element next : children) {
+			compact(next);
+		}
+	}
+
+	static class ChoiceName {
+		final String name;
+		final String typeCode;
+		final String underscoreName;
+
+		private ChoiceName(String theName, String theTypeCode) {
+			name = theName;
+			typeCode = theTypeCode;
+			underscoreName = "_" + theName;
+		}
+	}
+}
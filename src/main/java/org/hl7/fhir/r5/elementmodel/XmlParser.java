@@ -34,8 +34,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -82,10 +80,41 @@ import org.xml.sax.InputSource;
 import org.xml.sax.XMLReader;
 
 public class XmlParser extends ParserBase {
+	private final ParserPropertyCache propertyCache = new ParserPropertyCache();
+	private boolean trackElementPaths = true;
+	private boolean trustedInput;
+
 	public XmlParser(IWorkerContext context) {
 		super(context);
 	}
 
+	/**
+	 * @param trackElementPaths false to leave {@link Element#getPath()} empty below the root, for callers that never
+	 *                          read it; saves building a path string for every node
+	 */
+	public XmlParser setTrackElementPaths(boolean trackElementPaths) {
+		this.trackElementPaths = trackElementPaths;
+		return this;
+	}
+
+	/**
+	 * Trusted input mode for production conversion of documents that are known to be valid: no line/column tracking
+	 * (not even with {@link ValidationPolicy#EVERYTHING}), comments are dropped by the DOM parser and not attached to
+	 * the elements, and element paths are not built (see {@link #setTrackElementPaths}). Errors are still reported.
+	 */
+	public XmlParser setTrustedInput(boolean trustedInput) {
+		this.trustedInput = trustedInput;
+		return this;
+	}
+
+	/**
+	 * @return whether element paths are built, the setting of {@link #setTrackElementPaths} unless in trusted input
+	 * mode, so that it applies again when the mode is switched off
+	 */
+	private boolean tracksElementPaths() {
+		return trackElementPaths && !trustedInput;
+	}
+
 	public List<NamedElement> parse(InputStream stream) throws FHIRFormatError, DefinitionException, FHIRException, IOException {
 		List<NamedElement> res = new ArrayList<>();
 		Document doc = null;
@@ -100,7 +129,10 @@ public class XmlParser extends ParserBase {
 			factory.setExpandEntityReferences(false);
 
 			factory.setNamespaceAware(true);
-			if (policy == ValidationPolicy.EVERYTHING) {
+			if (trustedInput) {
+				factory.setIgnoringComments(true);
+			}
+			if (policy == ValidationPolicy.EVERYTHING && !trustedInput) {
 				// The SAX interface appears to not work when reporting the correct version/encoding.
 				// if we can, we'll inspect the header/encoding ourselves
 				if (stream.markSupported()) {
@@ -148,11 +180,17 @@ public class XmlParser extends ParserBase {
 
 
 	private int line(Node node) {
+		if (trustedInput) {
+			return 0;
+		}
 		XmlLocationData loc = node == null ? null : (XmlLocationData) node.getUserData(XmlLocationData.LOCATION_DATA_KEY);
 		return loc == null ? 0 : loc.getStartLine();
 	}
 
 	private int col(Node node) {
+		if (trustedInput) {
+			return 0;
+		}
 		XmlLocationData loc = node == null ? null : (XmlLocationData) node.getUserData(XmlLocationData.LOCATION_DATA_KEY);
 		return loc == null ? 0 : loc.getStartColumn();
 	}
@@ -184,18 +222,19 @@ public class XmlParser extends ParserBase {
 	public Element parse(org.w3c.dom.Element element) throws FHIRFormatError, DefinitionException, FHIRException, IOException {
 		String ns = element.getNamespaceURI();
 		String name = element.getLocalName();
-		String path = "/" + pathPrefix(ns) + name;
+		LazyPath path = LazyPath.root("/" + pathPrefix(ns) + name);
 
 		StructureDefinition sd = getDefinition(line(element), col(element), (ns == null ? "noNamespace" : ns), name);
 		if (sd == null)
 			return null;
 
-		Element result = new Element(element.getLocalName(), new Property(context, sd.getSnapshot().getElement().get(0), sd));
+		Element result = new Element(propertyCache.intern(element.getLocalName()), new Property(context, sd.getSnapshot().getElement().get(0), sd));
 		result.setPath(element.getLocalName());
 		result.markLocation(line(element), col(element));
 		result.setType(element.getLocalName());
 		parseChildren(path, element, result);
 		result.numberChildren();
+		ParserPropertyCache.compact(result);
 		return result;
 	}
 
@@ -216,10 +255,10 @@ public class XmlParser extends ParserBase {
 	}
 
 
-	private void parseChildren(String path, org.w3c.dom.Element node, Element element) throws FHIRFormatError, FHIRException, IOException, DefinitionException {
+	private void parseChildren(LazyPath path, org.w3c.dom.Element node, Element element) throws FHIRFormatError, FHIRException, IOException, DefinitionException {
 		// this parsing routine retains the original order in a the XML file, to support validation
 		reapComments(node, element);
-		List<Property> properties = element.getProperty().getChildProperties(element.getName(), XMLUtil.getXsiType(node));
+		List<Property> properties = propertyCache.getChildProperties(element.getProperty(), element.getName(), XMLUtil.getXsiType(node));
 
 		String text = XMLUtil.getDirectText(node).trim();
 		int line = line(node);
@@ -230,16 +269,16 @@ public class XmlParser extends ParserBase {
 				if ("ED.data[x]".equals(property.getDefinition().getId()) || (property.getDefinition() != null && property.getDefinition().getBase() != null && "ED.data[x]".equals(property.getDefinition().getBase().getPath()))) {
 					if ("B64".equals(node.getAttribute("representation"))) {
 						Element n = new Element("dataBase64Binary", property, "base64Binary", text).markLocation(line, col);
-						n.setPath(element.getPath() + "." + property.getName());
+						setChildPath(n, element, property.getName(), -1);
 						element.getChildren().add(n);
 					} else {
 						Element n = new Element("dataString", property, "string", text).markLocation(line, col);
-						n.setPath(element.getPath() + "." + property.getName());
+						setChildPath(n, element, property.getName(), -1);
 						element.getChildren().add(n);
 					}
 				} else {
 					Element n = new Element(property.getName(), property, property.getType(), text).markLocation(line, col);
-					n.setPath(element.getPath() + "." + property.getName());
+					setChildPath(n, element, property.getName(), -1);
 					element.getChildren().add(n);
 				}
 			} else {
@@ -254,7 +293,7 @@ public class XmlParser extends ParserBase {
 						}
 						line = line(n);
 						col = col(n);
-						logError(line, col, path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.TEXT_SHOULD_NOT_BE_PRESENT, text), IssueSeverity.ERROR);
+						logError(line, col, path.toString(), IssueType.STRUCTURE, context.formatMessage(I18nConstants.TEXT_SHOULD_NOT_BE_PRESENT, text), IssueSeverity.ERROR);
 					}
 					n = n.getNextSibling();
 				}
@@ -273,7 +312,7 @@ public class XmlParser extends ParserBase {
 						element.setValue(av);
 					else {
 						Element n = new Element(property.getName(), property, property.getType(), av).markLocation(line, col);
-						n.setPath(element.getPath() + "." + property.getName());
+						setChildPath(n, element, property.getName(), -1);
 						element.getChildren().add(n);
 					}
 				} else {
@@ -282,7 +321,7 @@ public class XmlParser extends ParserBase {
 						ok = ok || (attr.getLocalName().equals("schemaLocation")); // xsi:schemalocation allowed for non FHIR content
 					ok = ok || (hasTypeAttr(element) && attr.getLocalName().equals("type") && FormatUtilities.NS_XSI.equals(attr.getNamespaceURI())); // xsi:type allowed if element says so
 					if (!ok)
-						logError(line, col, path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.UNDEFINED_ATTRIBUTE__ON__FOR_TYPE__PROPERTIES__, attr.getNodeName(), node.getNodeName(), element.fhirType(), properties), IssueSeverity.ERROR);
+						logError(line, col, path.toString(), IssueType.STRUCTURE, context.formatMessage(I18nConstants.UNDEFINED_ATTRIBUTE__ON__FOR_TYPE__PROPERTIES__, attr.getNodeName(), node.getNodeName(), element.fhirType(), properties), IssueSeverity.ERROR);
 				}
 			}
 		}
@@ -307,16 +346,12 @@ public class XmlParser extends ParserBase {
 						else
 							xhtml = new XhtmlParser().setValidatorMode(true).parseHtmlNode((org.w3c.dom.Element) child);
 						Element n = new Element(property.getName(), property, "xhtml", new XhtmlComposer(XhtmlComposer.XML, false).compose(xhtml)).setXhtml(xhtml).markLocation(line(child), col(child));
-						n.setPath(element.getPath() + "." + property.getName());
+						setChildPath(n, element, property.getName(), -1);
 						element.getChildren().add(n);
 					} else {
-						String npath = path + "/" + pathPrefix(child.getNamespaceURI()) + child.getLocalName();
-						Element n = new Element(child.getLocalName(), property).markLocation(line(child), col(child));
-						if (property.isList()) {
-							n.setPath(element.getPath() + "." + property.getName() + "[" + repeatCount + "]");
-						} else {
-							n.setPath(element.getPath() + "." + property.getName());
-						}
+						LazyPath npath = path.child("/", pathPrefix(child.getNamespaceURI()), child.getLocalName());
+						Element n = new Element(propertyCache.intern(child.getLocalName()), property).markLocation(line(child), col(child));
+						setChildPath(n, element, property.getName(), property.isList() ? repeatCount : -1);
 
 						boolean ok = true;
 						if (property.isChoice()) {
@@ -327,7 +362,7 @@ public class XmlParser extends ParserBase {
 										xsiType = ToolingExtensions.readStringExtension(property.getDefinition(), "http://hl7.org/fhir/StructureDefinition/elementdefinition-defaulttype");
 										n.setType(xsiType);
 									} else {
-										logError(line(child), col(child), path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.NO_TYPE_FOUND_ON_, child.getLocalName()), IssueSeverity.ERROR);
+										logError(line(child), col(child), path.toString(), IssueType.STRUCTURE, context.formatMessage(I18nConstants.NO_TYPE_FOUND_ON_, child.getLocalName()), IssueSeverity.ERROR);
 										ok = false;
 									}
 								} else {
@@ -348,26 +383,26 @@ public class XmlParser extends ParserBase {
 						}
 					}
 				} else
-					logError(line(child), col(child), path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.UNDEFINED_ELEMENT_, child.getLocalName()), IssueSeverity.ERROR);
+					logError(line(child), col(child), path.toString(), IssueType.STRUCTURE, context.formatMessage(I18nConstants.UNDEFINED_ELEMENT_, child.getLocalName()), IssueSeverity.ERROR);
 			} else if (child.getNodeType() == Node.CDATA_SECTION_NODE) {
-				logError(line(child), col(child), path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.CDATA_IS_NOT_ALLOWED), IssueSeverity.ERROR);
+				logError(line(child), col(child), path.toString(), IssueType.STRUCTURE, context.formatMessage(I18nConstants.CDATA_IS_NOT_ALLOWED), IssueSeverity.ERROR);
 			} else if (!Utilities.existsInList(child.getNodeType(), 3, 8)) {
-				logError(line(child), col(child), path, IssueType.STRUCTURE, context.formatMessage(I18nConstants.NODE_TYPE__IS_NOT_ALLOWED, Integer.toString(child.getNodeType())), IssueSeverity.ERROR);
+				logError(line(child), col(child), path.toString(), IssueType.STRUCTURE, context.formatMessage(I18nConstants.NODE_TYPE__IS_NOT_ALLOWED, Integer.toString(child.getNodeType())), IssueSeverity.ERROR);
 			}
 			child = child.getNextSibling();
 		}
 	}
 
+	private void setChildPath(Element child, Element parent, String name, int index) {
+		if (tracksElementPaths()) {
+			child.setPath(index < 0 ? parent.getPath() + "." + name : parent.getPath() + "." + name + "[" + index + "]");
+		}
+	}
+
 	private Property getElementProp(List<Property> properties, String nodeName, String namespace) {
-		List<Property> propsSortedByLongestFirst = new ArrayList<Property>(properties);
 		// sort properties according to their name longest first, so .requestOrganizationReference comes first before .request[x]
 		// and therefore the longer property names get evaluated first
-		Collections.sort(propsSortedByLongestFirst, new Comparator<Property>() {
-			@Override
-			public int compare(Property o1, Property o2) {
-				return o2.getName().length() - o1.getName().length();
-			}
-		});
+		List<Property> propsSortedByLongestFirst = propertyCache.sortedByLongestName(properties);
 		// first scan, by namespace
 		for (Property p : propsSortedByLongestFirst) {
 			if (!p.getDefinition().hasRepresentation(PropertyRepresentation.XMLATTR) && !p.getDefinition().hasRepresentation(PropertyRepresentation.XMLTEXT)) {
@@ -429,18 +464,21 @@ public class XmlParser extends ParserBase {
 			throw new FHIRException(context.formatMessage(I18nConstants.UNKNOWN_DATE_FORMAT_, fmt));
 	}
 
-	private void parseResource(String string, org.w3c.dom.Element container, Element parent, Property elementProperty) throws FHIRFormatError, DefinitionException, FHIRException, IOException {
+	private void parseResource(LazyPath path, org.w3c.dom.Element container, Element parent, Property elementProperty) throws FHIRFormatError, DefinitionException, FHIRException, IOException {
 		org.w3c.dom.Element res = XMLUtil.getFirstChild(container);
 		String name = res.getLocalName();
 		StructureDefinition sd = context.fetchResource(StructureDefinition.class, ProfileUtilities.sdNs(name, context.getOverrideVersionNs()));
 		if (sd == null)
 			throw new FHIRFormatError(context.formatMessage(I18nConstants.CONTAINED_RESOURCE_DOES_NOT_APPEAR_TO_BE_A_FHIR_RESOURCE_UNKNOWN_NAME_, res.getLocalName()));
-		parent.updateProperty(new Property(context, sd.getSnapshot().getElement().get(0), sd), SpecialElement.fromProperty(parent.getProperty()), elementProperty);
+		parent.updateProperty(propertyCache.getResourceProperty(sd, () -> new Property(context, sd.getSnapshot().getElement().get(0), sd)), SpecialElement.fromProperty(parent.getProperty()), elementProperty);
 		parent.setType(name);
-		parseChildren(res.getLocalName(), res, parent);
+		parseChildren(LazyPath.root(res.getLocalName()), res, parent);
 	}
 
 	private void reapComments(org.w3c.dom.Element element, Element context) {
+		if (trustedInput) {
+			return;
+		}
 		Node node = element.getPreviousSibling();
 		while (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
 			if (node.getNodeType() == Node.COMMENT_NODE)